@@ -0,0 +1,99 @@
+package ch.heigvd.dai.network;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import picocli.CommandLine;
+
+/*
+ * A connection without socket: what the server queues is drained at once and only counted,
+ * as if the client read everything. Lets the benchmarks run the real request processing.
+ * The group messages are written by the shard threads, a benchmark waits for them on the frame counter.
+ */
+final class BenchConnection extends Connection {
+    private boolean draining;
+    private long bytes;
+    private final AtomicLong frames;
+
+    BenchConnection(String address, Server server) {
+        this(address, server, new AtomicLong());
+    }
+
+    /* The frames are counted in frames, which can be shared by several connections */
+    BenchConnection(String address, Server server, AtomicLong frames) {
+        super(address, server);
+        this.frames = frames;
+    }
+
+    /* A server with the options of the command line, its history in a new temporary directory */
+    static Server server(String... options) throws IOException {
+        return server(Files.createTempDirectory("bench-history"), options);
+    }
+
+    /* A server keeping its history in the directory */
+    static Server server(Path directory, String... options) throws IOException {
+        Server server = new Server();
+        String[] arguments = new String[options.length + 2];
+        arguments[0] = "--history-dir=" + directory;
+        arguments[1] = "--outbound-queue-size=8192";
+        System.arraycopy(options, 0, arguments, 2, options.length);
+        new CommandLine(server).parseArgs(arguments);
+        server.openHistory();
+        return server;
+    }
+
+    /* Feeds one text line to the server through the decoder, as the reader of a socket would */
+    static void send(CommandDecoder decoder, String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        decoder.feed(bytes, 0, bytes.length);
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    long frames() {
+        return frames.get();
+    }
+
+    @Override
+    protected void onWritePending() {
+        if (draining) return; // a stream writing its part, the loop below gets it
+        draining = true;
+        try {
+            do {
+                Frame frame;
+                while ((frame = pollOutbound()) != null) {
+                    bytes += frame.size();
+                    frames.incrementAndGet();
+                }
+            } while (resumeStreams());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            draining = false;
+        }
+    }
+
+    @Override
+    protected long transferTo(FileChannel file, long position, long count) {
+        bytes += count;
+        return count;
+    }
+
+    @Override
+    protected void writeDirect(ByteBuffer buffer) {
+        bytes += buffer.remaining();
+        buffer.position(buffer.limit());
+    }
+
+    @Override
+    protected void onClose() {
+    }
+}
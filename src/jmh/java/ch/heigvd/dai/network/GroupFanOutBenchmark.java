@@ -0,0 +1,69 @@
+package ch.heigvd.dai.network;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * One SEND_GROUP delivered to every member of the group: the request handed to the shard of the group, the frame
+ * encoded once and queued to each connection, and the message buffered for the history. Each operation waits
+ * until every member got the frame.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GroupFanOutBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int members;
+
+    @Param({"TEXT", "BINARY"})
+    public String protocol;
+
+    private Server server;
+    private CommandDecoder sender;
+    private byte[] message;
+    private final AtomicLong delivered = new AtomicLong(); // frames received by all the members
+
+    @Setup
+    public void setUp() throws IOException {
+        server = BenchConnection.server();
+        for (int i = 0; i < members; i++) {
+            BenchConnection member = new BenchConnection("member" + i, server, delivered);
+            member.setProtocol(Protocol.valueOf(protocol));
+            CommandDecoder decoder = new CommandDecoder(server, member);
+            BenchConnection.send(decoder, "JOIN member" + i);
+            BenchConnection.send(decoder, "PARTICIPATE SPORT");
+        }
+        sender = new CommandDecoder(server, new BenchConnection("sender", server));
+        BenchConnection.send(sender, "JOIN sender");
+        BenchConnection.send(sender, "PARTICIPATE SPORT");
+        message = "SEND_GROUP SPORT who is coming to the match tonight?\n".getBytes(StandardCharsets.UTF_8);
+
+        // BINARY members get a USER frame with the first message only, every operation then delivers one frame per member
+        long expected = delivered.get() + (protocol.equals("BINARY") ? 2L : 1L) * members;
+        sender.feed(message, 0, message.length);
+        while (delivered.get() < expected) {
+            Thread.yield(); // the shard may need this core
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.closeHistory();
+    }
+
+    @Benchmark
+    public void sendGroup() throws IOException {
+        long expected = delivered.get() + members;
+        sender.feed(message, 0, message.length);
+        while (delivered.get() < expected) {
+            Thread.yield(); // the shard may need this core
+        }
+    }
+}
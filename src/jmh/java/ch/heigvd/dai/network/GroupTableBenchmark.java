@@ -0,0 +1,53 @@
+package ch.heigvd.dai.network;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Checking a group and converting its name to the id of the binary protocol and back, which every group message
+ * does, and reading a page of LIST_GROUPS, with the default groups only up to 100k created groups.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GroupTableBenchmark {
+    @Param({"0", "1000", "100000"})
+    public int created;
+
+    private final GroupTable table = new GroupTable();
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        names = new String[created + GroupTable.DEFAULT_GROUPS.length];
+        for (int i = 0; i < created; i++) {
+            names[i] = "GROUP-" + i;
+            table.create(names[i], "bench");
+        }
+        System.arraycopy(GroupTable.DEFAULT_GROUPS, 0, names, created, GroupTable.DEFAULT_GROUPS.length);
+    }
+
+    @Benchmark
+    public boolean exists() {
+        if (++next == names.length) next = 0;
+        return table.exists(names[next]);
+    }
+
+    @Benchmark
+    public String idAndName() {
+        if (++next == names.length) next = 0;
+        return table.nameOf(table.idOf(names[next]));
+    }
+
+    @Benchmark
+    public List<String> page() {
+        if (++next == names.length) next = 0;
+        return table.page(names[next], Server.LIST_GROUPS_PAGE_SIZE);
+    }
+}
@@ -0,0 +1,56 @@
+package ch.heigvd.dai.network;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * What the history writer does for each pass: one append of the group messages queued since the last one.
+ * A single message is a quiet group, 64 messages a busy one.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HistoryAppendBenchmark {
+    @Param({"1", "64"})
+    public int batch;
+
+    @Param({"NONE", "DEFLATE"})
+    public String compression;
+
+    private HistoryStore store;
+    private final List<ByteBuffer> lines = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws IOException {
+        Path directory = Files.createTempDirectory("bench-history");
+        // Small segments, so that sealing (and compressing) a segment is part of the measure
+        store = new HistoryStore(directory, 1024 * 1024, HistoryStore.Compression.valueOf(compression));
+        for (int i = 0; i < batch; i++) {
+            lines.add(ByteBuffer.wrap(("user" + i + " who is coming to the match tonight?\n").getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.close();
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        for (ByteBuffer line : lines) {
+            line.rewind();
+        }
+        return store.append("SPORT", lines);
+    }
+}
@@ -0,0 +1,101 @@
+package ch.heigvd.dai.network;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * HISTORY as processed for a client: the whole history, a page in the middle, the last messages (from the cache),
+ * and the whole history compressed on the wire after COMPRESS. The history is written before the server starts,
+ * its full segments are sealed (and compressed with DEFLATE) as they would be on a running server.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HistoryReadBenchmark {
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+
+    @Param({"1000", "100000"})
+    public int messages;
+
+    @Param({"NONE", "DEFLATE"})
+    public String compression;
+
+    private Server server;
+    private BenchConnection reader;
+    private CommandDecoder plain;
+    private BenchConnection compressedReader;
+    private CommandDecoder compressed;
+    private String page;
+
+    @Setup
+    public void setUp() throws IOException {
+        Path directory = Files.createTempDirectory("bench-history");
+        HistoryStore store = new HistoryStore(directory, SEGMENT_SIZE, HistoryStore.Compression.valueOf(compression));
+        String[] words = "who is coming to the match tonight ok see you at the stadium bring the ball".split(" ");
+        List<ByteBuffer> lines = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            StringBuilder line = new StringBuilder("user" + i % 100);
+            for (int j = 0; j < 3 + i % 11; j++) {
+                line.append(' ').append(words[(i * 7 + j * 13) % words.length]);
+            }
+            lines.add(ByteBuffer.wrap(line.append('\n').toString().getBytes(StandardCharsets.UTF_8)));
+            if (lines.size() == HistoryWriter.MAX_BATCH_SIZE || i == messages - 1) {
+                store.append("SPORT", lines);
+                lines.clear();
+            }
+        }
+        store.close();
+
+        server = BenchConnection.server(directory, "--segment-size=" + SEGMENT_SIZE, "--history-compression=" + compression);
+        reader = new BenchConnection("reader", server);
+        plain = new CommandDecoder(server, reader);
+        BenchConnection.send(plain, "JOIN reader");
+        BenchConnection.send(plain, "PARTICIPATE SPORT");
+        compressedReader = new BenchConnection("compressed", server);
+        compressed = new CommandDecoder(server, compressedReader);
+        BenchConnection.send(compressed, "JOIN compressed");
+        BenchConnection.send(compressed, "PARTICIPATE SPORT");
+        BenchConnection.send(compressed, "COMPRESS");
+        page = "HISTORY SPORT " + messages / 2 + " 100";
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.closeHistory();
+    }
+
+    @Benchmark
+    public long historyAll() throws IOException {
+        BenchConnection.send(plain, "HISTORY SPORT");
+        return reader.bytes();
+    }
+
+    @Benchmark
+    public long historyPage() throws IOException {
+        BenchConnection.send(plain, page);
+        return reader.bytes();
+    }
+
+    @Benchmark
+    public long historyLast() throws IOException {
+        BenchConnection.send(plain, "HISTORY SPORT LAST 100");
+        return reader.bytes();
+    }
+
+    @Benchmark
+    public long historyAllCompressed() throws IOException {
+        BenchConnection.send(compressed, "HISTORY SPORT");
+        return compressedReader.bytes();
+    }
+}
@@ -0,0 +1,60 @@
+package ch.heigvd.dai.network;
+
+import ch.heigvd.dai.util.ClientCommand;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The metrics stay on in production: recording a request, with and without the two reads of the clock the server does
+ * around it, and the STATS snapshot that sums the histograms of all the commands.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+    private final Metrics metrics = new Metrics();
+    private Server server;
+    public ClientCommand command = ClientCommand.SEND_GROUP;
+    public long nanos = 12_345;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = BenchConnection.server();
+        for (ClientCommand command : ClientCommand.values()) {
+            metrics.onRequest(command, nanos);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.closeHistory();
+    }
+
+    @Benchmark
+    public void record() {
+        metrics.onRequest(command, nanos);
+    }
+
+    @Benchmark
+    public void recordTimed() {
+        long start = System.nanoTime();
+        metrics.onRequest(command, System.nanoTime() - start);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        metrics.onRequest(command, nanos);
+    }
+
+    @Benchmark
+    public Map<String, Long> stats() {
+        return server.stats();
+    }
+}
@@ -0,0 +1,36 @@
+package ch.heigvd.dai.network;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The limits are checked before every request: one connection taking from its own bucket, and 4 threads
+ * taking from the same bucket, as the accept loops or the requests of a user spread over several connections.
+ * The rate is high enough that the buckets never run out, only the cost of the check is measured.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RateLimiterBenchmark {
+    private final RateLimiter shared = RateLimiter.of(Long.MAX_VALUE / 1_000_000_000L);
+
+    @State(Scope.Thread)
+    public static class Own {
+        final RateLimiter limiter = RateLimiter.of(Long.MAX_VALUE / 1_000_000_000L);
+    }
+
+    @Benchmark
+    public boolean ownBucket(Own own) {
+        return own.limiter.tryAcquire(1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean sharedBucket() {
+        return shared.tryAcquire(1);
+    }
+}
@@ -0,0 +1,151 @@
+package ch.heigvd.dai.network;
+
+import ch.heigvd.dai.util.ClientCommand;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Parsing of the client lines: Request alone for both protocols, then a whole SEND_PRIVATE from the bytes
+ * read to the frame queued for the recipient (CommandDecoder, Server.processRequest, Protocol).
+ * The baseline* benchmarks keep the parsing done before Request, for comparison: BufferedReader.readLine,
+ * split and ClientCommand.valueOf, which throws for an unknown command.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParsingBenchmark {
+    private final Request request = new Request();
+    private byte[] sendGroup;
+    private byte[] history;
+    private byte[] binarySendGroup;
+    private byte[] sendPrivate;
+    private byte[] unknown;
+    private BufferedReader sendGroupLines;
+    private BufferedReader historyLines;
+    private BufferedReader unknownLines;
+    private Server server;
+    private CommandDecoder decoder;
+
+    @Setup
+    public void setUp() throws IOException {
+        sendGroup = "#42 SEND_GROUP SPORT who is coming to the match tonight?".getBytes(StandardCharsets.UTF_8);
+        history = "HISTORY SPORT 1000 100".getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new Protocol.Encoder(ClientCommand.SEND_GROUP, 42)
+                .varint(User.getGroupId("SPORT")).string("who is coming to the match tonight?").bytes();
+        binarySendGroup = Arrays.copyOfRange(frame, 1, frame.length); // without its length, one byte below 128
+        sendPrivate = "SEND_PRIVATE bob see you at the match\n".getBytes(StandardCharsets.UTF_8);
+        unknown = "SEND_EVERYONE who is coming to the match tonight?".getBytes(StandardCharsets.UTF_8);
+        // The baseline had no tags
+        sendGroupLines = lines("SEND_GROUP SPORT who is coming to the match tonight?");
+        historyLines = lines("HISTORY SPORT 1000 100");
+        unknownLines = lines("SEND_EVERYONE who is coming to the match tonight?");
+
+        server = BenchConnection.server();
+        BenchConnection alice = new BenchConnection("alice", server);
+        BenchConnection bob = new BenchConnection("bob", server);
+        BenchConnection.send(new CommandDecoder(server, bob), "JOIN bob");
+        decoder = new CommandDecoder(server, alice);
+        BenchConnection.send(decoder, "JOIN alice");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.closeHistory();
+    }
+
+    @Benchmark
+    public int decodeTextSendGroup() {
+        request.decode(sendGroup, 0, sendGroup.length);
+        return request.restLength(1);
+    }
+
+    @Benchmark
+    public long decodeTextHistory() {
+        request.decode(history, 0, history.length);
+        return request.longArgument(1) + request.longArgument(2);
+    }
+
+    @Benchmark
+    public int decodeBinarySendGroup() {
+        request.decodeBinary(binarySendGroup, 0, binarySendGroup.length);
+        return request.restLength(1);
+    }
+
+    @Benchmark
+    public boolean decodeTextUnknown() {
+        return request.decode(unknown, 0, unknown.length);
+    }
+
+    @Benchmark
+    public void processSendPrivate() throws IOException {
+        decoder.feed(sendPrivate, 0, sendPrivate.length);
+    }
+
+    @Benchmark
+    public int baselineTextSendGroup() throws IOException {
+        String[] input = readCommand(sendGroupLines);
+        if (input == null) return -1;
+        String group = input[1].split(" ", 2)[0];
+        String content = input[1].split(" ", 2)[1];
+        return group.length() + content.length();
+    }
+
+    @Benchmark
+    public long baselineTextHistory() throws IOException {
+        String[] input = readCommand(historyLines);
+        if (input == null) return -1;
+        String[] arguments = input[1].split(" ");
+        return arguments[0].length() + Long.parseLong(arguments[1]) + Long.parseLong(arguments[2]);
+    }
+
+    @Benchmark
+    public boolean baselineTextUnknown() throws IOException {
+        return readCommand(unknownLines) != null;
+    }
+
+    /* The line split in the command and the rest, null if the command is unknown */
+    private static String[] readCommand(BufferedReader in) throws IOException {
+        String[] input = in.readLine().split(" ", 2);
+        try {
+            ClientCommand.valueOf(input[0]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return input;
+    }
+
+    /* A reader giving the same line forever, as a socket would */
+    private static BufferedReader lines(String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        InputStream in = new InputStream() {
+            private int position;
+
+            @Override
+            public int read() {
+                int b = bytes[position] & 0xFF;
+                position = (position + 1) % bytes.length;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                for (int i = 0; i < length; i++) {
+                    buffer[offset + i] = bytes[position];
+                    position = (position + 1) % bytes.length;
+                }
+                return length;
+            }
+        };
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+}
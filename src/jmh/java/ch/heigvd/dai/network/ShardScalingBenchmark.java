@@ -0,0 +1,72 @@
+package ch.heigvd.dai.network;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Group messages per second with the groups spread over more and more shards: each operation publishes one
+ * message to each of GROUPS groups of 100 members, and waits until every member got it. The groups hash to
+ * different shards, so with enough cores the time per operation drops until the shards outnumber the cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardScalingBenchmark {
+    private static final int GROUPS = 8;
+    private static final int MEMBERS = 100;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    private HistoryStore store;
+    private GroupShards groups;
+    private final String[] names = new String[GROUPS];
+    private final AtomicLong delivered = new AtomicLong();
+    private User sender;
+    private final List<String> message = List.of("who is coming to the match tonight?");
+
+    @Setup
+    public void setUp() throws IOException {
+        Server server = BenchConnection.server();
+        server.closeHistory(); // only its options are used, the shards are made here
+        store = new HistoryStore(Files.createTempDirectory("bench-history"), 64L * 1024 * 1024, HistoryStore.Compression.NONE);
+        HistoryCache cache = new HistoryCache(store, 256, 64L * 1024 * 1024);
+        groups = new GroupShards(shards, store, cache, HistoryWriter.Durability.NONE, 1000, 60_000, new LatencyHistogram());
+        for (int g = 0; g < GROUPS; g++) {
+            names[g] = "G" + g; // consecutive hash codes, one group per shard with 8 shards
+            User.getGroupTable().create(names[g], "bench");
+            for (int i = 0; i < MEMBERS; i++) {
+                String name = "member" + g + "_" + i;
+                User member = new User(name, new BenchConnection(name, server, delivered));
+                groups.subscribe(names[g], member);
+            }
+        }
+        sender = new User("sender", null); // a sender of another node, never a member
+        publish();
+    }
+
+    @TearDown
+    public void tearDown() {
+        groups.close();
+        store.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        long expected = delivered.get() + (long) GROUPS * MEMBERS;
+        for (String group : names) {
+            groups.publish(group, sender, message);
+        }
+        while (delivered.get() < expected) {
+            Thread.yield(); // the shard may need this core
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package ch.heigvd.dai.network;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Finding a user: by name for SEND_PRIVATE, and the user of the connection that sent a request,
+ * which used to be a search by address and is now a field of the Connection.
+ * The baseline* benchmarks keep the linear scans of the CopyOnWriteArrayList done before UserRegistry,
+ * findUserByName and findUserByAddress, on the same users.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UserLookupBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int users;
+
+    private final UserRegistry registry = new UserRegistry();
+    private String[] names;
+    private int next;
+    private Server server;
+    private Connection connection;
+    private final CopyOnWriteArrayList<BaselineUser> baselineUsers = new CopyOnWriteArrayList<>();
+    private String host;
+    private int port;
+
+    @Setup
+    public void setUp() throws IOException {
+        names = new String[users];
+        for (int i = 0; i < users; i++) {
+            names[i] = "user" + i;
+            registry.register(new User(names[i], null));
+            baselineUsers.add(new BaselineUser(names[i], "127.0.0.1:" + (10000 + i)));
+        }
+        host = "127.0.0.1";
+        port = 10000 + users / 2;
+        server = BenchConnection.server();
+        connection = new BenchConnection("127.0.0.1:40000", server);
+        connection.setUser(registry.findByName(names[users / 2]));
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.closeHistory();
+    }
+
+    @Benchmark
+    public boolean findByName() {
+        if (++next == users) next = 0;
+        return registry.findByName(names[next]) != null;
+    }
+
+    @Benchmark
+    public boolean findByNameMissing() {
+        return registry.findByName("nobody") != null;
+    }
+
+    @Benchmark
+    public boolean userOfConnection() {
+        return connection.getUser() != null;
+    }
+
+    @Benchmark
+    public boolean baselineFindByName() {
+        if (++next == users) next = 0;
+        return findUserByName(baselineUsers, names[next]) != null;
+    }
+
+    @Benchmark
+    public boolean baselineFindByNameMissing() {
+        return findUserByName(baselineUsers, "nobody") != null;
+    }
+
+    /* The address was built from the socket for each request */
+    @Benchmark
+    public boolean baselineUserOfConnection() {
+        return findUserByAddress(baselineUsers, host + ":" + port) != null;
+    }
+
+    private record BaselineUser(String name, String address) {
+    }
+
+    private static BaselineUser findUserByName(CopyOnWriteArrayList<BaselineUser> users, String name) {
+        for (BaselineUser user : users) {
+            if (user.name().equals(name)) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    private static BaselineUser findUserByAddress(CopyOnWriteArrayList<BaselineUser> users, String address) {
+        for (BaselineUser user : users) {
+            if (user.address().equals(address)) {
+                return user;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,32 @@
+package ch.heigvd.dai.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* The client looks up the message of every ERROR it receives, the first and the last entries of the table and a miss */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ErrorMappingBenchmark {
+    public ClientCommand first = ClientCommand.JOIN;
+    public ClientCommand last = ClientCommand.BATCH;
+
+    @Benchmark
+    public ErrorMapping findFirst() {
+        return ErrorMapping.findErrorMapping(first, 1);
+    }
+
+    @Benchmark
+    public ErrorMapping findLast() {
+        return ErrorMapping.findErrorMapping(last, 3);
+    }
+
+    @Benchmark
+    public ErrorMapping findMissing() {
+        return ErrorMapping.findErrorMapping(first, 99);
+    }
+}
@@ -1,5 +1,6 @@
 package ch.heigvd.dai.app;
 
+import ch.heigvd.dai.network.Bench;
 import ch.heigvd.dai.network.Client;
 import ch.heigvd.dai.network.Server;
 import picocli.CommandLine;
@@ -10,6 +11,7 @@ import picocli.CommandLine;
         subcommands = {
                 Server.class,
                 Client.class,
+                Bench.class,
         },
         scope = CommandLine.ScopeType.INHERIT,
         mixinStandardHelpOptions = true)
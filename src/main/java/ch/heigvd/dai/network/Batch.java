@@ -0,0 +1,78 @@
+package ch.heigvd.dai.network;
+
+import ch.heigvd.dai.util.ClientCommand;
+
+/*
+ * The SEND_PRIVATE and SEND_GROUP lines that follow a BATCH <count> line, kept until the last one arrives.
+ * The strings are copied out of the Request, which is reused for the next line.
+ * An item already known to fail (too long, not a send command) keeps its error code instead of its content.
+ */
+final class Batch {
+    public static final int MAX_SIZE = 256; // items per batch
+    public static final int INVALID = -1; // code of an item that is not a send command
+
+    private final long tag;
+    private final ClientCommand[] commands;
+    private final String[] targets; // recipient or group
+    private final String[] messages;
+    private final int[] codes; // 0 until the batch is processed, unless the item failed when it was received
+    private int count;
+
+    Batch(long tag, int size) {
+        this.tag = tag;
+        this.commands = new ClientCommand[size];
+        this.targets = new String[size];
+        this.messages = new String[size];
+        this.codes = new int[size];
+    }
+
+    void add(ClientCommand command, String target, String message) {
+        commands[count] = command;
+        targets[count] = target;
+        messages[count] = message;
+        count++;
+    }
+
+    void addFailed(ClientCommand command, int code) {
+        commands[count] = command;
+        codes[count] = code;
+        count++;
+    }
+
+    boolean isComplete() {
+        return count == commands.length;
+    }
+
+    long tag() {
+        return tag;
+    }
+
+    int size() {
+        return commands.length;
+    }
+
+    ClientCommand command(int item) {
+        return commands[item];
+    }
+
+    String target(int item) {
+        return targets[item];
+    }
+
+    String message(int item) {
+        return messages[item];
+    }
+
+    int code(int item) {
+        return codes[item];
+    }
+
+    void setCode(int item, int code) {
+        codes[item] = code;
+    }
+
+    /* The codes of the items, 0 for the ones that were sent */
+    int[] codes() {
+        return codes;
+    }
+}
@@ -0,0 +1,511 @@
+package ch.heigvd.dai.network;
+
+import ch.heigvd.dai.util.ClientCommand;
+import ch.heigvd.dai.util.ServerCommand;
+import picocli.CommandLine;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Load generator: simulated clients, each one a socket read by a virtual thread, send a mix of commands
+ * to a running server at a fixed total rate and the latencies are printed as percentiles.
+ *
+ * The requests are sent on a schedule that does not wait for the responses, and a latency is counted from the time
+ * the request was scheduled: a server that stalls delays the requests behind the stall and they are counted as late.
+ * SEND_PRIVATE and SEND_GROUP carry their scheduled time, the delivery latency is measured when the RECEIVE_PRIVATE
+ * or RECEIVE_GROUP arrives at a recipient. Everything runs in one process, so System.nanoTime is the same clock.
+ */
+@CommandLine.Command(name = "bench", description = "Load a local server with simulated clients and print the latency percentiles.")
+public class Bench implements Callable<Integer> {
+    private static final ClientCommand[] MIX_COMMANDS = {
+            ClientCommand.JOIN, ClientCommand.PARTICIPATE, ClientCommand.SEND_PRIVATE,
+            ClientCommand.SEND_GROUP, ClientCommand.HISTORY, ClientCommand.LIST_USERS
+    };
+    private static final int CONNECTING = 100; // clients connecting at the same time, more would overflow the backlog
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(5); // wait for the last responses
+
+    @CommandLine.Option(
+            names = {"-p", "--port"},
+            description = "Port of the server (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1234")
+    protected int PORT;
+
+    @CommandLine.Option(
+            names = {"-h", "--host"},
+            description = "Host of the server (default: ${DEFAULT-VALUE}).",
+            defaultValue = "localhost")
+    protected String HOST;
+
+    @CommandLine.Option(
+            names = {"-c", "--clients"},
+            description = "Number of simulated clients (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1000")
+    protected int CLIENTS;
+
+    @CommandLine.Option(
+            names = {"-r", "--rate"},
+            description = "Requests per second sent by all the clients together (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1000")
+    protected int RATE;
+
+    @CommandLine.Option(
+            names = {"-d", "--duration"},
+            description = "Seconds measured (default: ${DEFAULT-VALUE}).",
+            defaultValue = "10")
+    protected int DURATION;
+
+    @CommandLine.Option(
+            names = {"--warmup"},
+            description = "Seconds of load before the measure starts (default: ${DEFAULT-VALUE}).",
+            defaultValue = "2")
+    protected int WARMUP;
+
+    @CommandLine.Option(
+            names = {"--mix"},
+            description = "Weight of each command, among JOIN (reconnects), PARTICIPATE, SEND_PRIVATE, SEND_GROUP, HISTORY and LIST_USERS (default: ${DEFAULT-VALUE}).",
+            defaultValue = "SEND_GROUP=50,SEND_PRIVATE=30,HISTORY=10,LIST_USERS=5,PARTICIPATE=5")
+    protected String MIX;
+
+    @CommandLine.Option(
+            names = {"--message-size"},
+            description = "Characters of the sent messages, 24 to 100 (default: ${DEFAULT-VALUE}).",
+            defaultValue = "40")
+    protected int MESSAGE_SIZE;
+
+    @CommandLine.Option(
+            names = {"--history-count"},
+            description = "Messages asked by each HISTORY <group> LAST <count> (default: ${DEFAULT-VALUE}).",
+            defaultValue = "20")
+    protected int HISTORY_COUNT;
+
+    @CommandLine.Option(
+            names = {"-b", "--binary"},
+            description = "The clients use the binary protocol instead of text lines (default: ${DEFAULT-VALUE}).",
+            defaultValue = "false")
+    protected boolean BINARY;
+
+    private record Pending(ClientCommand command, long scheduled) {}
+
+    private final Map<ClientCommand, LatencyHistogram> latencies = new EnumMap<>(ClientCommand.class);
+    private final Map<ClientCommand, LongAdder> errors = new EnumMap<>(ClientCommand.class);
+    private final LatencyHistogram deliveries = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder requestsWritten = new LongAdder(); // warmup and connections included, for the bytes per request
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+    private ClientCommand[] mix; // one entry per unit of weight, a random entry is the next command
+    private AtomicReferenceArray<String> names; // current name of each client, a reconnection changes it
+    private volatile long runStart = Long.MAX_VALUE;
+    private volatile long measureStart = Long.MAX_VALUE;
+    private volatile long measureEnd = Long.MAX_VALUE;
+
+    @Override
+    public Integer call() {
+        if (CLIENTS < 1 || RATE < 1 || DURATION < 1 || WARMUP < 0 || HISTORY_COUNT < 1) {
+            System.err.println("Error: --clients, --rate, --duration and --history-count must be at least 1, --warmup positive");
+            return 1;
+        }
+        if (MESSAGE_SIZE < 24 || MESSAGE_SIZE > 100) {
+            System.err.println("Error: --message-size must be between 24 and 100");
+            return 1;
+        }
+        try {
+            mix = parseMix(MIX);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: --mix " + e.getMessage());
+            return 1;
+        }
+        for (ClientCommand command : MIX_COMMANDS) {
+            latencies.put(command, new LatencyHistogram());
+            errors.put(command, new LongAdder());
+        }
+        names = new AtomicReferenceArray<>(CLIENTS);
+
+        System.out.println("[Bench] Connecting " + CLIENTS + " clients to " + HOST + ":" + PORT + " (" + (BINARY ? "BINARY" : "TEXT") + ")...");
+        List<SimulatedClient> clients = connectAll();
+        if (clients.isEmpty()) {
+            System.err.println("Error: No client could connect to " + HOST + ":" + PORT);
+            return 1;
+        }
+
+        // Every client sends one request per interval, the first one at a random time of the first interval
+        long interval = TimeUnit.SECONDS.toNanos(clients.size()) / RATE;
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        runStart = start;
+        measureStart = start + TimeUnit.SECONDS.toNanos(WARMUP);
+        measureEnd = measureStart + TimeUnit.SECONDS.toNanos(DURATION);
+        System.out.println("[Bench] " + clients.size() + " clients connected, " + RATE + " requests/s, "
+                + WARMUP + " s of warmup then " + DURATION + " s measured");
+        List<Thread> schedulers = new ArrayList<>();
+        for (SimulatedClient client : clients) {
+            long first = start + ThreadLocalRandom.current().nextLong(interval);
+            schedulers.add(Thread.ofVirtual().start(() -> client.run(first, interval, measureEnd)));
+        }
+        try {
+            for (Thread scheduler : schedulers) {
+                scheduler.join();
+            }
+            long deadline = System.nanoTime() + DRAIN_NANOS;
+            while (pending(clients) > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long lost = pending(clients);
+        for (SimulatedClient client : clients) {
+            client.close();
+        }
+        report(lost);
+        return 0;
+    }
+
+    private List<SimulatedClient> connectAll() {
+        List<SimulatedClient> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        Semaphore connecting = new Semaphore(CONNECTING);
+        for (int i = 0; i < CLIENTS; i++) {
+            SimulatedClient client = new SimulatedClient(i);
+            threads.add(Thread.ofVirtual().start(() -> {
+                connecting.acquireUninterruptibly();
+                try {
+                    client.connect(System.nanoTime());
+                    synchronized (clients) {
+                        clients.add(client);
+                    }
+                } catch (IOException e) {
+                    System.out.println("[Bench] Client " + client.index + " could not connect: " + e.getMessage());
+                } finally {
+                    connecting.release();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return clients;
+    }
+
+    /* Requests scheduled in the measure that are still waiting for their response */
+    private long pending(List<SimulatedClient> clients) {
+        long count = 0;
+        for (SimulatedClient client : clients) {
+            for (Pending request : client.pending.values()) {
+                if (isMeasured(request.scheduled())) count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean isMeasured(long scheduled) {
+        return scheduled >= measureStart && scheduled < measureEnd;
+    }
+
+    /* "SEND_GROUP=50,HISTORY=10" as a table where each command appears as many times as its weight */
+    private static ClientCommand[] parseMix(String mix) {
+        List<ClientCommand> table = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] weight = entry.trim().split("=", 2);
+            ClientCommand command;
+            int count;
+            try {
+                command = ClientCommand.valueOf(weight[0].trim().toUpperCase());
+                count = weight.length == 2 ? Integer.parseInt(weight[1].trim()) : 1;
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("has an invalid entry: " + entry);
+            }
+            if (!List.of(MIX_COMMANDS).contains(command) || count < 0) {
+                throw new IllegalArgumentException("has an invalid entry: " + entry);
+            }
+            for (int i = 0; i < count; i++) {
+                table.add(command);
+            }
+        }
+        if (table.isEmpty()) throw new IllegalArgumentException("has no command");
+        return table.toArray(new ClientCommand[0]);
+    }
+
+    private void report(long lost) {
+        long delivered = deliveries.count();
+        System.out.printf("[Bench] %d requests sent (%.1f/s), %d messages delivered, %d responses lost, %d clients disconnected%n",
+                sent.sum(), sent.sum() / (double) DURATION, delivered, lost, disconnected.sum());
+        System.out.printf("%14s %9s %7s %9s %9s %9s %9s%n", "", "count", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (ClientCommand command : MIX_COMMANDS) {
+            LatencyHistogram histogram = latencies.get(command);
+            if (histogram.count() == 0) continue;
+            printRow(command.name(), histogram, errors.get(command).sum());
+        }
+        if (delivered > 0) {
+            printRow("DELIVERY", deliveries, 0);
+        }
+        System.out.printf("[Bench] On the wire: %.1f bytes per request sent, %.1f bytes per %s received%n",
+                bytesSent.sum() / (double) Math.max(1, requestsWritten.sum()), bytesReceived.sum() / (double) Math.max(1, framesReceived.sum()),
+                BINARY ? "frame" : "line");
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram, long errors) {
+        System.out.printf("%14s %9d %7d %9.3f %9.3f %9.3f %9.3f%n", name, histogram.count(), errors,
+                millis(histogram.percentile(0.50)), millis(histogram.percentile(0.99)),
+                millis(histogram.percentile(0.999)), millis(histogram.max()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    /* Counts the bytes read from the socket */
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) bytesReceived.increment();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) bytesReceived.add(read);
+            return read;
+        }
+    }
+
+    private class SimulatedClient {
+        private final int index;
+        private final String group;
+        private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+        private long nextTag; // scheduler thread only
+        private int generation; // reconnections, a JOIN of the mix takes a new name
+        private volatile Socket socket;
+        private OutputStream out;
+
+        SimulatedClient(int index) {
+            this.index = index;
+            this.group = GroupTable.DEFAULT_GROUPS[index % GroupTable.DEFAULT_GROUPS.length];
+        }
+
+        void connect(long scheduled) throws IOException {
+            Socket socket = new Socket(HOST, PORT);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            InputStream in = new BufferedInputStream(new CountingInputStream(socket.getInputStream()));
+            if (BINARY) { // The server answers with the same two bytes
+                out.write(new byte[]{(byte) Protocol.BINARY_MAGIC, (byte) Protocol.BINARY_VERSION});
+                out.flush();
+                byte[] answer = in.readNBytes(2);
+                if (answer.length < 2 || (answer[0] & 0xFF) != Protocol.BINARY_MAGIC) {
+                    socket.close();
+                    throw new IOException("the server does not speak the binary protocol");
+                }
+            }
+            this.socket = socket;
+            Thread.ofVirtual().start(() -> read(socket, in));
+            String name = "bench" + index + (generation == 0 ? "" : "." + generation);
+            names.set(index, name);
+            send(ClientCommand.JOIN, scheduled, name);
+            send(ClientCommand.PARTICIPATE, scheduled, group);
+        }
+
+        /* Sends the requests of the mix until end, one every interval */
+        void run(long first, long interval, long end) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            try {
+                for (long next = first; next < end && socket != null; next += interval) {
+                    long delay = next - System.nanoTime();
+                    if (delay > 0) LockSupport.parkNanos(delay);
+                    ClientCommand command = mix[random.nextInt(mix.length)];
+                    switch (command) {
+                        case JOIN -> reconnect(next);
+                        case PARTICIPATE -> send(command, next, group);
+                        case SEND_PRIVATE -> send(command, next, names.get(random.nextInt(CLIENTS)), message(next));
+                        case SEND_GROUP -> send(command, next, group, message(next));
+                        case HISTORY -> send(command, next, group, "LAST", Integer.toString(HISTORY_COUNT));
+                        default -> send(command, next);
+                    }
+                    if (isMeasured(next)) sent.increment();
+                }
+            } catch (IOException e) {
+                onDisconnected();
+            }
+        }
+
+        /* A client leaving and coming back, the responses of the old connection are forgotten */
+        private void reconnect(long scheduled) throws IOException {
+            close();
+            pending.clear();
+            generation++;
+            try {
+                connect(scheduled);
+            } catch (IOException e) {
+                disconnected.increment();
+                throw e;
+            }
+        }
+
+        /* A tagged request, in the protocol of the connection */
+        private void send(ClientCommand command, long scheduled, String... arguments) throws IOException {
+            long tag = nextTag++;
+            pending.put(tag, new Pending(command, scheduled));
+            byte[] bytes = BINARY ? encodeBinary(command, tag, arguments) : encodeText(command, tag, arguments);
+            out.write(bytes);
+            out.flush();
+            bytesSent.add(bytes.length);
+            requestsWritten.increment();
+        }
+
+        private byte[] encodeText(ClientCommand command, long tag, String... arguments) {
+            StringBuilder line = new StringBuilder("#").append(tag).append(' ').append(command);
+            for (String argument : arguments) {
+                line.append(' ').append(argument);
+            }
+            return line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        private byte[] encodeBinary(ClientCommand command, long tag, String... arguments) {
+            Protocol.Encoder encoder = new Protocol.Encoder(command, tag);
+            switch (command) {
+                case JOIN, PARTICIPATE -> encoder.string(arguments[0]);
+                case SEND_PRIVATE -> encoder.string(arguments[0]).string(arguments[1]);
+                case SEND_GROUP -> encoder.varint(User.getGroupId(arguments[0])).string(arguments[1]);
+                case HISTORY -> encoder.varint(User.getGroupId(arguments[0])).raw(Protocol.RANGE_LAST).varint(HISTORY_COUNT);
+                default -> {
+                }
+            }
+            return encoder.bytes();
+        }
+
+        /* "t<scheduled time> xxx...", the recipient reads the time back */
+        private String message(long scheduled) {
+            StringBuilder message = new StringBuilder("t").append(scheduled).append(' ');
+            while (message.length() < MESSAGE_SIZE) {
+                message.append('x');
+            }
+            return message.toString();
+        }
+
+        private void read(Socket socket, InputStream in) {
+            try {
+                if (BINARY) {
+                    Protocol.Decoder frame;
+                    while ((frame = Protocol.Decoder.read(in)) != null) {
+                        framesReceived.increment();
+                        onFrame(frame);
+                    }
+                } else {
+                    ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+                    int b;
+                    while ((b = in.read()) >= 0) {
+                        if (b != '\n') {
+                            line.write(b);
+                            continue;
+                        }
+                        framesReceived.increment();
+                        onLine(line.toString(StandardCharsets.UTF_8));
+                        line.reset();
+                    }
+                }
+            } catch (IOException e) {
+                // Closed by the bench or by the server, see below
+            }
+            if (this.socket == socket) onDisconnected();
+        }
+
+        private void onLine(String line) {
+            if (line.startsWith("#")) {
+                int space = line.indexOf(' ');
+                long tag = Long.parseLong(line.substring(1, space));
+                String response = line.substring(space + 1);
+                if (!response.startsWith(ServerCommand.HISTORY_ENTRY.name())) {
+                    onResponse(tag, response.startsWith(ServerCommand.ERROR.name()));
+                }
+            } else if (line.startsWith(ServerCommand.RECEIVE_GROUP.name())) {
+                onDelivered(line.split(" ", 4)[3]);
+            } else if (line.startsWith(ServerCommand.RECEIVE_PRIVATE.name())) {
+                onDelivered(line.split(" ", 3)[2]);
+            }
+        }
+
+        private void onFrame(Protocol.Decoder frame) {
+            int opcode = frame.opcode();
+            if (opcode == Protocol.USER_OPCODE) return;
+            long tag = (opcode & Protocol.TAGGED) != 0 ? frame.varint() : Protocol.NO_TAG;
+            ServerCommand command = ServerCommand.values()[(opcode & ~Protocol.TAGGED) - 1];
+            switch (command) {
+                case RECEIVE_PRIVATE -> {
+                    frame.varint();
+                    onDelivered(frame.string());
+                }
+                case RECEIVE_GROUP -> {
+                    frame.varint();
+                    frame.varint();
+                    onDelivered(frame.string());
+                }
+                case HISTORY_ENTRY -> {
+                }
+                default -> onResponse(tag, command == ServerCommand.ERROR);
+            }
+        }
+
+        private void onResponse(long tag, boolean error) {
+            Pending request = pending.remove(tag);
+            if (request == null) return;
+            // The JOIN and PARTICIPATE of the connections are measured too, they happen before the warmup
+            if (isMeasured(request.scheduled()) || request.scheduled() < runStart) {
+                latencies.get(request.command()).record(System.nanoTime() - request.scheduled());
+                if (error) errors.get(request.command()).increment();
+            }
+        }
+
+        private void onDelivered(String message) {
+            if (!message.startsWith("t")) return;
+            int end = message.indexOf(' ');
+            long scheduled = Long.parseLong(message.substring(1, end < 0 ? message.length() : end));
+            if (isMeasured(scheduled)) deliveries.record(System.nanoTime() - scheduled);
+        }
+
+        private void onDisconnected() {
+            Socket current = socket;
+            if (current == null) return;
+            socket = null;
+            disconnected.increment();
+            try {
+                current.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        void close() {
+            Socket current = socket;
+            socket = null;
+            if (current == null) return;
+            try {
+                current.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
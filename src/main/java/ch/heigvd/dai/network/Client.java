@@ -6,13 +6,33 @@ import picocli.CommandLine;
 import java.io.*;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.InflaterInputStream;
 
 
 @CommandLine.Command(name = "client", description = "Start the client part of the network .")
 public class Client implements Callable<Integer> {
     public String END_OF_LINE = "\n";
-    private ClientCommand lastCommand = null;
+    // Requests sent and not answered yet, by tag: the next request is sent without waiting for the response
+    private final Map<Long, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong nextTag = new AtomicLong();
+    private int batchRemaining = 0; // items of a BATCH still to be typed
+    private List<ClientCommand> batchItems;
+    private long exportRemaining = 0; // lines of an EXPORT still to be received
+    private int chunkSize = 0; // compressed bytes of a HISTORY_CHUNK still to be received
+    private long chunkTag = Protocol.NO_TAG;
+    private byte[] chunk; // binary HISTORY_CHUNK, the compressed bytes come in the frame
+    private long exportBytes; // binary EXPORT, bytes of the lines that follow the frame
+    // Binary protocol: ids learnt from the server, the names are shown instead
+    private final Map<Long, String> userNames = new ConcurrentHashMap<>();
+    private final Map<Long, String> groupNames = new ConcurrentHashMap<>();
+    private final Map<String, Long> groupIds = new ConcurrentHashMap<>();
+    private OutputStream binaryOut;
     public int MINIMUM_PORT = 1025;
     public int MAXIMUM_PORT = 65535;
 
@@ -28,6 +48,22 @@ public class Client implements Callable<Integer> {
             defaultValue = "localhost")
     protected String HOST;
 
+    @CommandLine.Option(
+            names = {"-b", "--binary"},
+            description = "Use the compact binary protocol instead of text lines (default: ${DEFAULT-VALUE}).",
+            defaultValue = "false")
+    protected boolean BINARY;
+
+    @CommandLine.Option(
+            names = {"-z", "--compress"},
+            description = "Ask the server to compress the HISTORY responses (default: ${DEFAULT-VALUE}).",
+            defaultValue = "false")
+    protected boolean COMPRESS;
+
+    /* A request waiting for its response, the arguments give the group of a PARTICIPATE, items the commands of a BATCH */
+    private record InFlight(ClientCommand command, String arguments, List<ClientCommand> items) {
+    }
+
     @Override
     public Integer call(){
         if (PORT < MINIMUM_PORT || PORT > MAXIMUM_PORT) {
@@ -46,10 +82,18 @@ public class Client implements Callable<Integer> {
              BufferedWriter out = new BufferedWriter(writer)) {
 
             System.out.println("[Client] Connected to " + HOST + ":" + PORT);
+            if (BINARY) { // The server answers with the same two bytes
+                binaryOut = new BufferedOutputStream(socket.getOutputStream());
+                binaryOut.write(new byte[]{(byte) Protocol.BINARY_MAGIC, (byte) Protocol.BINARY_VERSION});
+                binaryOut.flush();
+            }
 
             //Process server responses
             Thread serverListener = new Thread(new ServerListener(socket));
             serverListener.start();
+            if (COMPRESS) {
+                processClientInput(ClientCommand.COMPRESS.name(), out);
+            }
 
             while (!socket.isClosed()) {
                 System.out.print("> ");
@@ -81,7 +125,10 @@ public class Client implements Callable<Integer> {
             System.out.println("[Client] Invalid command: " + input);
             return;
         }
-        lastCommand = command;
+        if (batchRemaining > 0 && command != ClientCommand.SEND_PRIVATE && command != ClientCommand.SEND_GROUP) {
+            System.out.println("[Client] A batch can only hold SEND_PRIVATE and SEND_GROUP, " + batchRemaining + " messages left");
+            return;
+        }
 
         String request = switch (command) {
             case JOIN -> requestJoin(userInputParts);
@@ -89,17 +136,153 @@ public class Client implements Callable<Integer> {
             case SEND_GROUP -> requestSendGroup(userInputParts);
             case PARTICIPATE -> requestParticipate(userInputParts);
             case HISTORY -> requestHistory(userInputParts);
+            case EXPORT -> requestExport(userInputParts);
             case LIST_GROUPS -> requestListGroups(userInputParts);
             case LIST_USERS -> requestListUsers(userInputParts);
+            case BATCH -> requestBatch(userInputParts);
+            case COMPRESS -> requestCompress(userInputParts);
+            case STATS -> requestStats(userInputParts);
+            case CREATE_GROUP -> requestCreateGroup(userInputParts);
+            case DELETE_GROUP -> requestDeleteGroup(userInputParts);
         };
 
-        //Useless condition for the moment
-        if (request != null) {
-            out.write(request + END_OF_LINE);
+        if (request == null) return;
+        String[] parts = request.split(" ", 2);
+        String arguments = parts.length > 1 ? parts[1] : "";
+        if (batchRemaining > 0) { // An item of the batch, the BATCH_RESULT answers all of them
+            batchItems.add(command);
+            batchRemaining--;
+            sendRequest(Protocol.NO_TAG, command, request, arguments, out);
+            return;
+        }
+        long tag = nextTag.getAndIncrement();
+        if (command == ClientCommand.BATCH) {
+            batchItems = new ArrayList<>();
+            batchRemaining = Integer.parseInt(arguments);
+        }
+        inFlight.put(tag, new InFlight(command, arguments, command == ClientCommand.BATCH ? batchItems : null));
+        sendRequest(tag, command, request, arguments, out);
+    }
+
+    private void sendRequest(long tag, ClientCommand command, String request, String arguments, BufferedWriter out) throws IOException {
+        if (BINARY) {
+            binaryOut.write(encodeBinary(command, tag, arguments));
+            binaryOut.flush();
+        } else {
+            out.write((tag < 0 ? "" : "#" + tag + " ") + request + END_OF_LINE);
             out.flush();
         }
     }
 
+    /* The request as a binary frame, groups are sent as the id learnt from PARTICIPATE, CREATE_GROUP or LIST_GROUPS */
+    private byte[] encodeBinary(ClientCommand command, long tag, String arguments) {
+        Protocol.Encoder encoder = new Protocol.Encoder(command, tag);
+        switch (command) {
+            case JOIN, PARTICIPATE, CREATE_GROUP, DELETE_GROUP -> encoder.string(arguments);
+            case SEND_PRIVATE -> {
+                String[] message = arguments.split(" ", 2);
+                encoder.string(message[0]).string(message[1]);
+            }
+            case SEND_GROUP -> {
+                String[] message = arguments.split(" ", 2);
+                encoder.varint(groupIds.getOrDefault(message[0], -1L)).string(message[1]);
+            }
+            case HISTORY, EXPORT -> {
+                String[] range = arguments.split(" ");
+                encoder.varint(groupIds.getOrDefault(range[0], -1L));
+                if (range.length == 3 && range[1].equals("LAST")) {
+                    encoder.raw(Protocol.RANGE_LAST).varint(Long.parseLong(range[2]));
+                } else if (range.length == 3) {
+                    encoder.raw(Protocol.RANGE_FROM).varint(Long.parseLong(range[1])).varint(Long.parseLong(range[2]));
+                } else {
+                    encoder.raw(Protocol.RANGE_ALL);
+                }
+            }
+            case BATCH -> encoder.varint(Long.parseLong(arguments));
+            case LIST_GROUPS -> {
+                if (!arguments.isEmpty()) encoder.string(arguments);
+            }
+            case LIST_USERS, COMPRESS, STATS -> {
+            }
+        }
+        return encoder.bytes();
+    }
+
+    /* The binary response as the equivalent text line, so that both protocols are printed the same way */
+    private String decodeBinary(Protocol.Decoder frame) {
+        int opcode = frame.opcode();
+        if (opcode == Protocol.USER_OPCODE) {
+            userNames.put(frame.varint(), frame.string());
+            return null;
+        }
+        long tag = (opcode & Protocol.TAGGED) != 0 ? frame.varint() : Protocol.NO_TAG;
+        ServerCommand command = ServerCommand.values()[(opcode & ~Protocol.TAGGED) - 1];
+        String line = switch (command) {
+            case OK -> {
+                InFlight request = inFlight.get(tag);
+                if (frame.hasRemaining() && request != null
+                        && (request.command() == ClientCommand.PARTICIPATE || request.command() == ClientCommand.CREATE_GROUP)) {
+                    long id = frame.varint();
+                    groupIds.put(request.arguments(), id);
+                    groupNames.put(id, request.arguments());
+                }
+                yield "OK";
+            }
+            case ERROR, HISTORY_END -> command + " " + frame.varint();
+            case RECEIVE_PRIVATE -> command + " " + userName(frame.varint()) + " " + frame.string();
+            case RECEIVE_GROUP -> command + " " + groupName(frame.varint()) + " " + userName(frame.varint()) + " " + frame.string();
+            case HISTORY_ENTRY -> command + " " + frame.varint() + " " + frame.string() + " " + frame.string();
+            case EXPORT -> {
+                String header = command + " " + frame.varint() + " " + frame.varint();
+                exportBytes = frame.varint();
+                yield header + " " + exportBytes;
+            }
+            case LIST_GROUPS, LIST_USERS -> {
+                StringBuilder list = new StringBuilder(command + " ");
+                for (long i = frame.varint(); i > 0; i--) {
+                    long id = frame.varint();
+                    String name = frame.string();
+                    if (command == ServerCommand.LIST_GROUPS) {
+                        groupIds.put(name, id);
+                        groupNames.put(id, name);
+                    } else {
+                        userNames.put(id, name);
+                    }
+                    list.append(name).append(" ");
+                }
+                yield list.toString();
+            }
+            case BATCH_RESULT -> {
+                long count = frame.varint();
+                StringBuilder result = new StringBuilder(command + " " + count);
+                for (long i = 0; i < count; i++) {
+                    result.append(" ").append(frame.varint());
+                }
+                yield result.toString();
+            }
+            case HISTORY_CHUNK -> {
+                chunk = frame.blob();
+                yield command + " " + chunk.length;
+            }
+            case STATS -> {
+                StringBuilder stats = new StringBuilder(command.name());
+                for (long i = frame.varint(); i > 0; i--) {
+                    stats.append(" ").append(frame.string()).append("=").append(frame.varint());
+                }
+                yield stats.toString();
+            }
+        };
+        return tag < 0 ? line : "#" + tag + " " + line;
+    }
+
+    private String userName(long id) {
+        return userNames.getOrDefault(id, "#" + id);
+    }
+
+    private String groupName(long id) {
+        return groupNames.getOrDefault(id, "#" + id);
+    }
+
     private String requestJoin(String[] userInput){
         if (userInput.length != 2 || userInput[1].isEmpty()){
             System.out.println("[Client] Error on parameters");
@@ -145,13 +328,62 @@ public class Client implements Callable<Integer> {
         String groupNameHistory = userInput[1];
         return ClientCommand.HISTORY + " " + groupNameHistory.toUpperCase();
     }
-    private String requestListGroups(String[] userInput){
+    private String requestExport(String[] userInput){
+        if (userInput.length != 2 || userInput[1].isEmpty()){
+            System.out.println("[Client] Error on parameters");
+            return null;
+        }
+        return ClientCommand.EXPORT + " " + userInput[1].toUpperCase();
+    }
+    private String requestBatch(String[] userInput){
+        int size;
+        try {
+            size = userInput.length == 2 ? Integer.parseInt(userInput[1].trim()) : 0;
+        } catch (NumberFormatException e) {
+            size = 0;
+        }
+        if (size < 1 || size > Batch.MAX_SIZE) {
+            System.out.println("[Client] The batch size must be between 1 and " + Batch.MAX_SIZE);
+            return null;
+        }
+        System.out.println("[Client] Type the " + size + " SEND_PRIVATE or SEND_GROUP commands of the batch");
+        return ClientCommand.BATCH + " " + size;
+    }
+    private String requestCompress(String[] userInput){
         if (userInput.length != 1){
             System.out.println("[Client] Error on parameters");
             return null;
+        }
+        return ClientCommand.COMPRESS + "";
+    }
+    private String requestStats(String[] userInput){
+        if (userInput.length != 1){
+            System.out.println("[Client] Error on parameters");
+            return null;
+        }
+        return ClientCommand.STATS + "";
+    }
+    private String requestListGroups(String[] userInput){
+        // LIST_GROUPS [<after>], the next page starts after the last group of the previous one
+        if (userInput.length == 2 && !userInput[1].isEmpty()){
+            return ClientCommand.LIST_GROUPS + " " + userInput[1].trim().toUpperCase();
         }
          return ClientCommand.LIST_GROUPS + "";
     }
+    private String requestCreateGroup(String[] userInput){
+        if (userInput.length != 2 || userInput[1].isEmpty()){
+            System.out.println("[Client] Error on parameters");
+            return null;
+        }
+        return ClientCommand.CREATE_GROUP + " " + userInput[1].toUpperCase();
+    }
+    private String requestDeleteGroup(String[] userInput){
+        if (userInput.length != 2 || userInput[1].isEmpty()){
+            System.out.println("[Client] Error on parameters");
+            return null;
+        }
+        return ClientCommand.DELETE_GROUP + " " + userInput[1].toUpperCase();
+    }
     private String requestListUsers(String[] userInput){
         if (userInput.length != 1){
             System.out.println("[Client] Error on parameters");
@@ -168,6 +400,22 @@ public class Client implements Callable<Integer> {
             socket.close();
             return false;
         }
+        if (exportRemaining > 0) { // the exported lines are the stored "<sender> <message>" lines
+            responseExportLine(response);
+            return true;
+        }
+        // The tag of the request this response answers
+        InFlight request = null;
+        long tag = Protocol.NO_TAG;
+        if (response.startsWith("#")) {
+            String[] tagged = response.split(" ", 2);
+            tag = Long.parseLong(tagged[0].substring(1));
+            response = tagged.length > 1 ? tagged[1] : "";
+            boolean partial = response.startsWith(ServerCommand.HISTORY_ENTRY.name()) || response.startsWith(ServerCommand.HISTORY_CHUNK.name());
+            request = partial ? inFlight.get(tag) : inFlight.remove(tag);
+        }
+        ClientCommand requestCommand = request == null ? null : request.command();
+
         String[] responseSplit = response.split(" ", 2);
         ServerCommand command = null;
         try{
@@ -178,28 +426,39 @@ public class Client implements Callable<Integer> {
         }
 
         switch (command){
-            case OK ->responseOk();
-            case ERROR -> responseError(responseSplit);
+            case OK ->responseOk(requestCommand);
+            case ERROR -> responseError(requestCommand, responseSplit);
             case RECEIVE_PRIVATE -> responseReceivePrivate(responseSplit);
             case RECEIVE_GROUP -> responseReceiveGroup(responseSplit);
-            case HISTORY -> responseHistory(responseSplit);
-            case LIST_GROUPS, LIST_USERS -> responseList(responseSplit); // when the response is a list of something
+            case HISTORY_ENTRY -> responseHistoryEntry(responseSplit);
+            case HISTORY_END -> responseHistoryEnd(responseSplit);
+            case EXPORT -> responseExport(responseSplit);
+            case LIST_GROUPS, LIST_USERS -> responseList(command, responseSplit); // when the response is a list of something
+            case BATCH_RESULT -> responseBatchResult(request, responseSplit);
+            case HISTORY_CHUNK -> responseHistoryChunk(tag, responseSplit);
+            case STATS -> responseStats(responseSplit);
+        }
+        if (command != ServerCommand.HISTORY_ENTRY && command != ServerCommand.HISTORY_CHUNK && exportRemaining == 0) { // the history is printed as it arrives, the prompt comes after
+            System.out.print("> ");
         }
-        System.out.print("> ");
         return true;
     }
 
-    private void responseOk(){
-        switch (lastCommand){
+    private void responseOk(ClientCommand requestCommand){
+        if (requestCommand == null) return;
+        switch (requestCommand){
             case JOIN: System.out.println("[Client] You successfully joined"); break;
             case SEND_PRIVATE, SEND_GROUP: System.out.println("[Client] Message successfully sent"); break;
             case PARTICIPATE: System.out.println("[Client] You successfully joined the group"); break;
+            case COMPRESS: System.out.println("[Client] The history will be sent compressed"); break;
+            case CREATE_GROUP: System.out.println("[Client] The group was created"); break;
+            case DELETE_GROUP: System.out.println("[Client] The group was deleted"); break;
         }
     }
 
-    private void responseError(String[] response){
+    private void responseError(ClientCommand requestCommand, String[] response){
         ErrorMapping err;
-        if((err = ErrorMapping.findErrorMapping(lastCommand, Integer.parseInt(response[1])))== null){
+        if((err = ErrorMapping.findErrorMapping(requestCommand, Integer.parseInt(response[1])))== null){
             System.out.println("[Server] Unknown error code ");
             return;
         }
@@ -235,18 +494,77 @@ public class Client implements Callable<Integer> {
         System.out.println("[" + group +  ":" + sender + "] " + message);
     }
 
-    private void responseHistory(String[] response){
-        String[] messages = response[1].split("\\|"); // "|" is the message delimiter
-        for (String messageHistory : messages){
-            System.out.println(" - " + messageHistory);
+    private void responseHistoryEntry(String[] response){
+        // <sequence> <sender> <message>
+        String[] entry = response[1].split(" ", 3);
+        if (entry.length < 3) {
+            System.out.println("[Client] Couldn't properly receive history message");
+            return;
         }
+        System.out.println(" - [" + entry[1] + "] " + entry[2]);
+    }
+
+    private void responseHistoryChunk(long tag, String[] response){
+        // <size>, the compressed HISTORY_ENTRY lines follow, read by the listener
+        chunkSize = Integer.parseInt(response[1]);
+        chunkTag = tag;
     }
 
-    private void responseList(String[] response){
-        String[] list = response[1].split(" ");
+    private void responseHistoryEnd(String[] response){
+        System.out.println("[Client] " + (response.length > 1 ? response[1] : "0") + " messages in the history");
+    }
+
+    private void responseExport(String[] response){
+        // <from> <messages> <bytes>
+        String[] header = response.length > 1 ? response[1].split(" ") : new String[0];
+        if (header.length < 3) {
+            System.out.println("[Client] Couldn't properly receive export");
+            return;
+        }
+        exportRemaining = Long.parseLong(header[1]);
+        System.out.println("[Client] Exporting " + header[1] + " messages (" + header[2] + " bytes) from message " + header[0]);
+    }
+
+    private void responseExportLine(String line){
+        String[] entry = line.split(" ", 2);
+        System.out.println(" - [" + entry[0] + "] " + (entry.length > 1 ? entry[1] : ""));
+        if (--exportRemaining == 0) {
+            System.out.print("> ");
+        }
+    }
+
+    private void responseBatchResult(InFlight request, String[] response){
+        // <count> <code of each item>
+        String[] codes = response.length > 1 ? response[1].split(" ") : new String[]{"0"};
+        int failed = 0;
+        for (int i = 1; i < codes.length; i++) {
+            int code = Integer.parseInt(codes[i]);
+            if (code == 0) continue;
+            failed++;
+            ErrorMapping err = request == null || request.items() == null || i > request.items().size()
+                    ? null : ErrorMapping.findErrorMapping(request.items().get(i - 1), code);
+            System.out.println("[Server] Message " + i + ": " + (err == null ? "error " + code : err.getMessage()));
+        }
+        System.out.println("[Client] Batch done, " + (codes.length - 1 - failed) + " messages sent, " + failed + " failed");
+    }
+
+    private void responseStats(String[] response){
+        // <name>=<value> ...
+        String[] stats = response.length > 1 ? response[1].split(" ") : new String[0];
+        System.out.println();
+        for (String stat : stats){
+            System.out.println(" - " + stat.replace('=', ' '));
+        }
+    }
+
+    private void responseList(ServerCommand command, String[] response){
+        String[] list = response.length > 1 ? response[1].trim().split(" ") : new String[0];
         System.out.println();
         for (String item : list){
-            System.out.println(" - " + item);
+            if (!item.isEmpty()) System.out.println(" - " + item);
+        }
+        if (command == ServerCommand.LIST_GROUPS && list.length == Server.LIST_GROUPS_PAGE_SIZE) {
+            System.out.println("[Client] More groups with LIST_GROUPS " + list[list.length - 1]);
         }
     }
 
@@ -260,17 +578,89 @@ public class Client implements Callable<Integer> {
 
         @Override
         public void run() {
+            if (BINARY) {
+                runBinary();
+                return;
+            }
             try {
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                // Bytes and not chars, a HISTORY_CHUNK line is followed by compressed bytes
+                InputStream in = new BufferedInputStream(socket.getInputStream());
                 String response;
-                while ((response = in.readLine()) != null) {
+                while ((response = readLine(in)) != null) {
                     if (!processServerResponse(response, socket)) {
                         break;
                     }
+                    if (chunkSize > 0) {
+                        processChunk(in.readNBytes(chunkSize));
+                    }
                 }
             } catch (IOException e) {
                 System.out.println("[ServerListener] Error reading from socket: " + e.getMessage());
             }
         }
+
+        private void runBinary() {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                byte[] answer = in.readNBytes(2);
+                if (answer.length < 2 || (answer[0] & 0xFF) != Protocol.BINARY_MAGIC) {
+                    System.out.println("[Client] The server does not speak the binary protocol");
+                    socket.close();
+                    return;
+                }
+                Protocol.Decoder frame;
+                while ((frame = Protocol.Decoder.read(in)) != null) {
+                    String response = decodeBinary(frame);
+                    if (response == null) continue;
+                    if (!processServerResponse(response, socket)) {
+                        break;
+                    }
+                    if (chunkSize > 0) {
+                        processChunk(chunk);
+                    }
+                    if (exportRemaining > 0) { // The exported lines are not framed, they are the stored text lines
+                        BufferedReader lines = new BufferedReader(new InputStreamReader(
+                                new ByteArrayInputStream(in.readNBytes((int) exportBytes)),
+                                StandardCharsets.UTF_8));
+                        String line;
+                        while ((line = lines.readLine()) != null) {
+                            processServerResponse(line, socket);
+                        }
+                    }
+                }
+                socket.close();
+            } catch (IOException e) {
+                System.out.println("[ServerListener] Error reading from socket: " + e.getMessage());
+            }
+        }
+
+        /* Inflates a HISTORY_CHUNK and processes its entries as if they came one by one with the tag of the chunk */
+        private void processChunk(byte[] compressed) throws IOException {
+            String prefix = chunkTag < 0 ? "" : "#" + chunkTag + " ";
+            chunkSize = 0;
+            chunk = null;
+            InputStream entries = new InflaterInputStream(new ByteArrayInputStream(compressed));
+            if (BINARY) {
+                Protocol.Decoder frame;
+                while ((frame = Protocol.Decoder.read(entries)) != null) {
+                    processServerResponse(prefix + decodeBinary(frame), socket);
+                }
+            } else {
+                String line;
+                while ((line = readLine(entries)) != null) {
+                    processServerResponse(prefix + line, socket);
+                }
+            }
+        }
+
+        private String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+                line.write(b);
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,292 @@
+package ch.heigvd.dai.network;
+
+import ch.heigvd.dai.util.ClientCommand;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Cuts the bytes received from a client into lines and hands each line to the server as a Request.
+ * Both modes feed it: the blocking mode with what the socket input stream returns, the NIO mode with the
+ * shared read buffer of the event loop. Only a line split across two reads is copied, in a buffer allocated
+ * the first time it is needed.
+ *
+ * A line is rejected as soon as it crosses MAX_LINE_SIZE, the rest of it is skipped without being buffered.
+ *
+ * After each request the connection may ask to pause (Connection.pauseReading), feed then returns where it stopped
+ * and the caller feeds the rest again later, so a client cannot fill its own outbound queue with responses.
+ *
+ * The first byte of the connection chooses the protocol: Protocol.BINARY_MAGIC followed by a version
+ * switches to length-prefixed binary frames (see Protocol), anything else is the text protocol.
+ */
+final class CommandDecoder {
+    public static final int MAX_LINE_SIZE = 1024; // bytes
+
+    private static final ClientCommand[] COMMANDS = ClientCommand.values();
+    private static final byte[][] COMMAND_NAMES = new byte[COMMANDS.length][];
+
+    static {
+        for (ClientCommand command : COMMANDS) {
+            COMMAND_NAMES[command.ordinal()] = command.name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private enum State {
+        START, // nothing received yet
+        VERSION, // BINARY_MAGIC received, the version comes next
+        TEXT,
+        BINARY
+    }
+
+    private final Server server;
+    private final Connection connection;
+    private State state = State.START;
+    private long skipping; // binary bytes of a too large frame still to skip
+    private final Request request = new Request();
+    private byte[] partialLine; // allocated once a line is split across two reads
+    private int partialLength;
+    private boolean discarding; // the current line is too long, skip it until the next END_OF_LINE
+    private ClientCommand discardedCommand;
+    private long discardedLength; // bytes of the line or frame being skipped, charged to the limits of the connection
+    private long discardedTag = Protocol.NO_TAG;
+
+    CommandDecoder(Server server, Connection connection) {
+        this.server = server;
+        this.connection = connection;
+    }
+
+    /* The command whose name is the bytes [from, to), null if there is none */
+    static ClientCommand commandOf(byte[] bytes, int from, int to) {
+        int length = to - from;
+        for (int i = 0; i < COMMAND_NAMES.length; i++) {
+            byte[] name = COMMAND_NAMES[i];
+            if (name.length != length) continue;
+            int j = 0;
+            while (j < length && name[j] == bytes[from + j]) {
+                j++;
+            }
+            if (j == length) return COMMANDS[i];
+        }
+        return null;
+    }
+
+    /*
+     * Processes the complete lines or frames of [from, to) and keeps the end of an unfinished one.
+     * Returns to, or the end of the last request processed if the connection asked to pause.
+     */
+    int feed(byte[] bytes, int from, int to) throws IOException {
+        if (state == State.START && from < to) {
+            state = (bytes[from] & 0xFF) == Protocol.BINARY_MAGIC ? State.VERSION : State.TEXT;
+            if (state == State.VERSION) from++;
+        }
+        if (state == State.VERSION && from < to) {
+            // Only version 1 exists, the answer tells the client which version the server speaks
+            from++;
+            state = State.BINARY;
+            connection.setProtocol(Protocol.BINARY);
+            connection.write(Frame.wrap(new byte[]{(byte) Protocol.BINARY_MAGIC, (byte) Protocol.BINARY_VERSION}));
+        }
+        if (state == State.BINARY) {
+            return feedBinary(bytes, from, to);
+        } else if (state == State.TEXT) {
+            return feedText(bytes, from, to);
+        }
+        return to;
+    }
+
+    private int feedText(byte[] bytes, int from, int to) throws IOException {
+        int start = from;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] != '\n') continue;
+            onLine(bytes, start, i);
+            start = i + 1;
+            if (connection.isClosed()) return to;
+            if (start < to && connection.pauseReading()) return start;
+        }
+        if (start < to) {
+            appendPartial(bytes, start, to);
+        }
+        return to;
+    }
+
+    private void onLine(byte[] bytes, int from, int to) throws IOException {
+        if (discarding) {
+            discarding = false;
+            partialLength = 0;
+            server.processOversizedLine(discardedCommand, discardedTag, discardedLength + to - from, connection);
+        } else if (partialLength > 0) {
+            appendPartial(bytes, from, to);
+            int length = partialLength;
+            partialLength = 0;
+            if (discarding) {
+                discarding = false;
+                server.processOversizedLine(discardedCommand, discardedTag, discardedLength, connection);
+            } else {
+                process(partialLine, 0, length);
+            }
+        } else if (to - from > MAX_LINE_SIZE) {
+            server.processOversizedLine(commandAt(bytes, from, to), discardedTag, to - from, connection);
+        } else {
+            process(bytes, from, to);
+        }
+    }
+
+    private void process(byte[] bytes, int from, int to) throws IOException {
+        if (!request.decode(bytes, from, to)) {
+            server.processInvalidLine(to - from, connection);
+            return;
+        }
+        server.processRequest(request, connection);
+    }
+
+    private int feedBinary(byte[] bytes, int from, int to) throws IOException {
+        int position = from;
+        while (position < to && !connection.isClosed()) {
+            if (skipping > 0) {
+                int skipped = (int) Math.min(skipping, to - position);
+                position += skipped;
+                skipping -= skipped;
+                if (skipping == 0) {
+                    server.processOversizedLine(discardedCommand, discardedTag, discardedLength, connection);
+                }
+                continue;
+            }
+
+            if (partialLength == 0) {
+                long size = frameSize(bytes, position, to);
+                if (size == Long.MAX_VALUE) {
+                    invalidFrame();
+                    return to;
+                }
+                if (size > 0 && size <= to - position) { // The whole frame is in the buffer, no copy
+                    processBinary(bytes, position, position + (int) size);
+                    position += (int) size;
+                    if (position < to && !connection.isClosed() && connection.pauseReading()) return position;
+                    continue;
+                }
+                if (size > MAX_LINE_SIZE) {
+                    skip(bytes, position, to, size);
+                    continue;
+                }
+            }
+
+            // Copies the frame until it is complete, byte by byte while its length is not known
+            if (partialLine == null) {
+                partialLine = new byte[MAX_LINE_SIZE];
+            }
+            long size = frameSize(partialLine, 0, partialLength);
+            if (size == Long.MAX_VALUE) {
+                invalidFrame();
+                return to;
+            }
+            if (size > MAX_LINE_SIZE) {
+                discardedCommand = null;
+                discardedTag = Protocol.NO_TAG;
+                discardedLength = size;
+                skipping = size - partialLength;
+                partialLength = 0;
+                continue;
+            }
+            int wanted = size < 0 ? 1 : (int) size - partialLength;
+            int length = Math.min(wanted, to - position);
+            System.arraycopy(bytes, position, partialLine, partialLength, length);
+            partialLength += length;
+            position += length;
+            if (size > 0 && partialLength == size) {
+                partialLength = 0;
+                processBinary(partialLine, 0, (int) size);
+                if (position < to && !connection.isClosed() && connection.pauseReading()) return position;
+            }
+        }
+        return to;
+    }
+
+    /* Starts skipping a frame larger than MAX_LINE_SIZE, size counted from position */
+    private void skip(byte[] bytes, int position, int to, long size) {
+        int opcode = position + varintSize(bytes, position, to);
+        discardedCommand = null;
+        discardedTag = Protocol.NO_TAG;
+        discardedLength = size;
+        if (opcode < to) {
+            discardedCommand = Protocol.clientCommandOf(bytes[opcode] & 0xFF & ~Protocol.TAGGED);
+            int tagEnd = opcode + 1 + varintSize(bytes, opcode + 1, to);
+            if ((bytes[opcode] & Protocol.TAGGED) != 0 && tagEnd <= to && tagEnd - opcode - 1 <= 9) {
+                discardedTag = 0;
+                for (int i = tagEnd - 1; i > opcode; i--) {
+                    discardedTag = discardedTag << 7 | (bytes[i] & 0x7F);
+                }
+            }
+        }
+        skipping = size;
+    }
+
+    /* The length prefix is not a varint, there is no way to find the next frame */
+    private void invalidFrame() {
+        System.out.println("[Server] Invalid frame from " + connection.getAddress() + ", disconnect");
+        connection.close();
+    }
+
+    private void processBinary(byte[] bytes, int from, int to) throws IOException {
+        int header = varintSize(bytes, from, to);
+        if (to - from == header || !request.decodeBinary(bytes, from + header, to)) {
+            server.processInvalidLine(to - from, connection);
+            return;
+        }
+        server.processRequest(request, connection);
+    }
+
+    /* Size of the frame starting at from (length prefix included), -1 if the prefix is not complete yet */
+    private static long frameSize(byte[] bytes, int from, int to) {
+        long length = 0;
+        for (int i = from, shift = 0; i < to && shift < 35; i++, shift += 7) {
+            length |= (long) (bytes[i] & 0x7F) << shift;
+            if ((bytes[i] & 0x80) == 0) return length + (i - from + 1);
+        }
+        return to - from >= 5 ? Long.MAX_VALUE : -1; // More than 5 bytes of length is garbage
+    }
+
+    private static int varintSize(byte[] bytes, int from, int to) {
+        int i = from;
+        while (i < to && (bytes[i] & 0x80) != 0) {
+            i++;
+        }
+        return i - from + 1;
+    }
+
+    private void appendPartial(byte[] bytes, int from, int to) {
+        int length = to - from;
+        if (discarding) {
+            discardedLength += length;
+            return;
+        }
+        if (partialLength + length > MAX_LINE_SIZE) {
+            // Only the command is kept, to answer with the error of the command
+            discardedCommand = partialLength > 0 ? commandAt(partialLine, 0, partialLength) : commandAt(bytes, from, to);
+            discardedLength = partialLength + length;
+            discarding = true;
+            partialLength = 0;
+            return;
+        }
+        if (partialLine == null) {
+            partialLine = new byte[MAX_LINE_SIZE];
+        }
+        System.arraycopy(bytes, from, partialLine, partialLength, length);
+        partialLength += length;
+    }
+
+    /* The command of a too long line, its tag is kept in discardedTag */
+    private ClientCommand commandAt(byte[] bytes, int from, int to) {
+        discardedTag = Protocol.NO_TAG;
+        if (from < to && bytes[from] == '#') {
+            int tagEnd = Request.tagEnd(bytes, from, to);
+            if (tagEnd < 0) return null;
+            discardedTag = Request.parseLong(bytes, from + 1, tagEnd);
+            from = tagEnd + 1;
+        }
+        int end = from;
+        while (end < to && bytes[end] != ' ') {
+            end++;
+        }
+        return commandOf(bytes, from, end);
+    }
+}
@@ -0,0 +1,291 @@
+package ch.heigvd.dai.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/*
+ * A client connection as seen by the command processing of the server.
+ * The blocking mode (one thread per socket) and the NIO mode (selector event loops) both feed the bytes they read
+ * to the CommandDecoder of the connection, which hands each request with this class to Server.processRequest.
+ *
+ * Lines sent to the client go through a bounded outbound queue drained by the writer of the connection,
+ * so a sender never waits for a slow recipient. When the queue is full the OverflowPolicy of the server applies.
+ * Long responses are written as a Stream: the writer asks for the next part once the queue has room for it.
+ * A stream can also hand file regions to the socket with transfer, the bytes then never reach the heap.
+ */
+abstract class Connection {
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST,
+        DISCONNECT
+    }
+
+    /* A response written in parts */
+    interface Stream {
+        /* Queues or transfers the next part, returns false once the last part was written */
+        boolean writeNext(Connection connection) throws IOException;
+
+        /* Called once the last part was written or the connection closed, releases what the stream holds */
+        default void close() {
+        }
+    }
+
+    private final String address;
+    private final Server server;
+    private final LinkedBlockingQueue<Frame> outbound; // nodes are only allocated for queued lines, idle connections stay small
+    private final AtomicLong droppedLines = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final ConcurrentLinkedQueue<Stream> streams = new ConcurrentLinkedQueue<>();
+    private volatile User user; // set by JOIN, null until then
+    private boolean transferring; // writer only, a file region was partly sent
+    private volatile Protocol protocol = Protocol.TEXT; // chosen by the first bytes of the client
+    private final AtomicReference<Set<Integer>> announcedUsers = new AtomicReference<>(); // BINARY only, ids of the users already sent to the client
+    private Batch batch; // reader only, set between BATCH and its last item
+    private volatile boolean compressingHistory; // set by COMPRESS, HISTORY entries are then sent in HISTORY_CHUNK
+    private final RateLimiter requestLimit; // null when the requests are not limited
+    private final RateLimiter byteLimit;
+
+    protected Connection(String address, Server server) {
+        this.address = address;
+        this.server = server;
+        this.outbound = new LinkedBlockingQueue<>(server.OUTBOUND_QUEUE_SIZE);
+        this.requestLimit = RateLimiter.of(server.CONNECTION_RATE_LIMIT);
+        this.byteLimit = RateLimiter.of(server.CONNECTION_BYTE_LIMIT * 1024L);
+    }
+
+    /* "host:port" of the remote peer, computed once when the connection is accepted */
+    public String getAddress() {
+        return address;
+    }
+
+    /* The user bound to this connection, no lookup is needed once the client joined */
+    public User getUser() {
+        return user;
+    }
+
+    public void setUser(User user) {
+        this.user = user;
+    }
+
+    /* Takes the request from the limits of the connection, false if it is over one of them */
+    boolean allows(Request request) {
+        return allows(request.length());
+    }
+
+    /* Same for a line of length bytes that is not a request, invalid or too long, it counts as one */
+    boolean allows(long length) {
+        return RateLimiter.allows(requestLimit, 1) && RateLimiter.allows(byteLimit, length);
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /* The batch whose items are being received, null if the next line is a command */
+    Batch getBatch() {
+        return batch;
+    }
+
+    void setBatch(Batch batch) {
+        this.batch = batch;
+    }
+
+    boolean isCompressingHistory() {
+        return compressingHistory;
+    }
+
+    void setCompressingHistory(boolean compressingHistory) {
+        this.compressingHistory = compressingHistory;
+    }
+
+    boolean isAnnounced(int userId) {
+        Set<Integer> announced = announcedUsers.get();
+        return announced != null && announced.contains(userId);
+    }
+
+    void setAnnounced(int userId) {
+        Set<Integer> announced = announcedUsers.get();
+        if (announced == null) {
+            // Created by the first sender, a sender that loses the race uses the set of the winner
+            announcedUsers.compareAndSet(null, ConcurrentHashMap.newKeySet());
+            announced = announcedUsers.get();
+        }
+        announced.add(userId);
+    }
+
+    /* Queues one line (already terminated by END_OF_LINE) for the client, never blocks */
+    public void write(String line) {
+        write(Frame.of(line));
+    }
+
+    /* Queues an already encoded frame, the same frame can be shared between several connections */
+    public void write(Frame frame) {
+        if (closed.get()) return;
+        if (!outbound.offer(frame)) {
+            switch (server.SLOW_CONSUMER_POLICY) {
+                case DROP_NEWEST -> {
+                    onDropped();
+                    return;
+                }
+                case DROP_OLDEST -> {
+                    do {
+                        if (outbound.poll() != null) onDropped();
+                    } while (!outbound.offer(frame));
+                }
+                case DISCONNECT -> {
+                    System.out.println("[Server] Outbound queue of " + address + " is full, disconnect");
+                    server.onSlowConsumerDisconnect();
+                    close();
+                    return;
+                }
+            }
+        }
+        onWritePending();
+    }
+
+    /* Starts a long response, its parts are written by the writer of the connection once the lines before are sent */
+    public void stream(Stream stream) {
+        streams.add(stream);
+        // A full queue means the writer is busy, it resumes the streams once the queue is empty
+        if (!closed.get() && outbound.offer(Frame.EMPTY)) {
+            onWritePending();
+        }
+    }
+
+    /*
+     * Writes the next part of the current stream if the outbound queue has room for it.
+     * Only the writer calls it, when the queue is empty. Returns true if a part was written.
+     */
+    protected boolean resumeStreams() throws IOException {
+        Stream stream = streams.peek();
+        if (stream == null || closed.get() || !transferring && outbound.remainingCapacity() < server.streamPartSize()) {
+            return false;
+        }
+        if (!stream.writeNext(this)) {
+            streams.poll();
+            stream.close();
+        }
+        return true;
+    }
+
+    /* Lines waiting to be written to the socket */
+    public int getOutboundDepth() {
+        return outbound.size();
+    }
+
+    public long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            outbound.clear();
+            Stream stream;
+            while ((stream = streams.poll()) != null) {
+                stream.close();
+            }
+            onClose();
+        }
+    }
+
+    protected Frame pollOutbound() {
+        return outbound.poll();
+    }
+
+    protected Frame takeOutbound() throws InterruptedException {
+        return outbound.take();
+    }
+
+    protected Frame pollOutbound(long nanos) throws InterruptedException {
+        return outbound.poll(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /* Wakes up a writer waiting on the outbound queue without giving it anything to write */
+    protected void wakeWriter() {
+        if (outbound.offer(Frame.EMPTY)) {
+            onWritePending();
+        }
+    }
+
+    /*
+     * Called by the reader once it processed everything the client sent so far.
+     * With --flush-delay the writer may be holding frames back to write them with the next ones,
+     * the responses to the client should not wait for that.
+     */
+    protected void onReadIdle() {
+    }
+
+    /*
+     * Asked by the decoder after each request: true to stop processing the bytes already read until the responses
+     * queued are written. The overflow policy is meant for slow recipients, not for the answers to the client's own
+     * requests. The blocking mode never pauses, its writer thread drains the queue while the reader goes on.
+     */
+    protected boolean pauseReading() {
+        return false;
+    }
+
+    /*
+     * Runs then with the result of an operation of another thread once it completes, on the thread that processes
+     * the requests of the connection, and processes no other request of the connection meanwhile.
+     * The blocking mode waits on the thread of the connection, which only holds up this client.
+     */
+    protected <T> void await(CompletableFuture<T> operation, Consumer<T> then) {
+        then.accept(operation.join());
+    }
+
+    private void onDropped() {
+        droppedLines.incrementAndGet();
+        server.onOutboundDropped();
+    }
+
+    /*
+     * Sends the bytes [position, position + count) of the file straight to the socket, called by a stream.
+     * Returns the number of bytes sent, less than count when the socket cannot take more for now:
+     * the writer then resumes the stream before writing any other line.
+     */
+    public long transfer(FileChannel file, long position, long count) throws IOException {
+        long sent = transferTo(file, position, count);
+        transferring = sent < count;
+        return sent;
+    }
+
+    /* Writes the bytes straight to the socket, called by a stream whose output must not be mixed with queued lines */
+    public void send(ByteBuffer bytes) throws IOException {
+        writeDirect(bytes);
+        transferring = bytes.hasRemaining();
+    }
+
+    /* True while the rest of a part has to be sent before anything else */
+    protected boolean isTransferring() {
+        return transferring;
+    }
+
+    protected abstract long transferTo(FileChannel file, long position, long count) throws IOException;
+
+    protected abstract void writeDirect(ByteBuffer bytes) throws IOException;
+
+    /* Called after a line was queued, wakes up the writer of the connection */
+    protected abstract void onWritePending();
+
+    /* Called once, releases the socket */
+    protected abstract void onClose();
+}
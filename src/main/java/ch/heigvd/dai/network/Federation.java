@@ -0,0 +1,443 @@
+package ch.heigvd.dai.network;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Several servers (nodes) sharing their users. Each node keeps its own clients and opens a link to every other node,
+ * so the nodes form a full mesh. Through these links they share a directory: which node has which user, and which
+ * nodes have members in each group. A private message is forwarded to the node of its recipient, a group message
+ * once to each node with members in the group, which delivers it to its own members.
+ *
+ * A node only writes about itself, on the link it opened, and the entries of a node are dropped when its link closes.
+ * When a link opens the node first sends all its users and groups, so a peer that restarts catches up.
+ * The groups created by the clients are replicated: every node creates and deletes them as its peers tell it,
+ * two nodes creating the same name at the same time both keep their own owner.
+ *
+ * JOIN reserves the name on the node first, then asks every connected peer, which refuses it if one of its clients
+ * has it or if it granted it to another node. Two nodes reserving the same name at the same time both see the local
+ * reservation of the other one, so at most one of them succeeds (both may fail, the client can try again).
+ * A peer that is not connected is not asked: its users left with it. The answers complete a future, no thread waits
+ * for them: the client is registered once they all granted the name.
+ *
+ * The lines to a peer are queued and written by a thread of the link, so a sender never waits for the socket.
+ * A peer whose queue is full is disconnected, it catches up when its link opens again.
+ *
+ * The nodes do not authenticate each other, a node trusts every line it reads. The federation port listens on
+ * the loopback address unless --federation-host says otherwise, and only accepts the links that come from
+ * the hosts of the --peers.
+ *
+ * Lines between the nodes:
+ *   NODE <address>                            first line of a link, the address the peers have in their --peers
+ *   RESERVE <tag> <user>                      answered on the same link by RESERVED <tag> <0 granted | 1 taken>
+ *   USER <user>, LEFT <user>                  a client of the node joined (without reservation, when the link opens) or left
+ *   GROUP <group> <0 | 1>                     the node has no more or has members in the group
+ *   CREATE <group> <owner>, DELETE <group>    a client created or deleted a group
+ *   PRIVATE <sender> <recipient> <message>
+ *   GROUP_MESSAGE <group> <sender> <message>
+ */
+final class Federation {
+    static final long RESERVE_TIMEOUT_MILLIS = 1000; // a peer that does not answer in time refuses the name
+    static final long RECONNECT_MILLIS = 1000;
+    static final int PEER_QUEUE_SIZE = 65536; // lines waiting to be written to a peer
+
+    private record RemoteUser(String node, User user) {}
+
+    private final Server server;
+    private final UserRegistry users;
+    private final GroupShards groups;
+    private final String address;
+    private final String host; // the federation port listens on it, null for the loopback address
+    private final int port;
+    private final Map<String, Peer> peers = new LinkedHashMap<>(); // the links this node opened, by address
+    private final ConcurrentHashMap<String, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> remoteGroups = new ConcurrentHashMap<>(); // nodes with members
+    private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>(); // current link of each node
+    private final Set<String> reserving = ConcurrentHashMap.newKeySet(); // names of the local JOIN waiting for the peers
+
+    Federation(Server server, UserRegistry users, GroupShards groups, String address, String host, int port, List<String> peers) {
+        this.server = server;
+        this.users = users;
+        this.groups = groups;
+        this.address = address;
+        this.host = host;
+        this.port = port;
+        for (String peer : peers) {
+            this.peers.put(peer, new Peer(peer));
+        }
+    }
+
+    /* Listens for the links of the peers and starts opening the links to them */
+    void start() throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(host != null ? InetAddress.getByName(host) : InetAddress.getLoopbackAddress(), port));
+        System.out.println("[Server] Node " + address + " listening for peers on " + listener.getLocalSocketAddress() + ", " + peers.size() + " peers");
+        Thread.ofVirtual().name("federation-accept").start(() -> {
+            while (!listener.isClosed()) {
+                try {
+                    Socket socket = listener.accept();
+                    if (!isPeer(socket.getInetAddress())) {
+                        System.out.println("[Server] Link from " + socket.getRemoteSocketAddress() + ", not a peer, refused");
+                        socket.close();
+                        continue;
+                    }
+                    Thread.ofVirtual().name("federation-in").start(() -> readInbound(socket));
+                } catch (IOException e) {
+                    System.out.println("[Server] Federation exception: " + e);
+                }
+            }
+        });
+        for (Peer peer : peers.values()) {
+            Thread.ofVirtual().name("federation-out").start(peer::run);
+        }
+    }
+
+    /* True if one of the --peers has this address, their hosts are resolved again for each link in case they moved */
+    private boolean isPeer(InetAddress remote) {
+        for (String peer : peers.keySet()) {
+            try {
+                for (InetAddress candidate : InetAddress.getAllByName(peer.substring(0, peer.lastIndexOf(':')))) {
+                    if (candidate.equals(remote)) return true;
+                }
+            } catch (IOException e) { // Not resolved now, the peer tries again
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Reserves the name on this node and asks the peers whether it is free, completed with false if one refuses it.
+     * Once granted, the name stays reserved until endReserve.
+     */
+    CompletableFuture<Boolean> reserve(String name) {
+        if (users.findByName(name) != null || remoteUsers.containsKey(name) || !reserving.add(name)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        List<CompletableFuture<Boolean>> answers = new ArrayList<>();
+        for (Peer peer : peers.values()) {
+            CompletableFuture<Boolean> answer = peer.reserve(name);
+            if (answer != null) answers.add(answer.completeOnTimeout(false, RESERVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+        return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            boolean granted = answers.stream().allMatch(CompletableFuture::join);
+            if (!granted) {
+                endReserve(name, false);
+            }
+            return granted;
+        });
+    }
+
+    /* The user of the granted name is registered, or the JOIN gave up: the peers that granted it keep it until they hear it is free */
+    void endReserve(String name, boolean joined) {
+        reserving.remove(name);
+        if (!joined) {
+            onLeave(name);
+        }
+    }
+
+    /* A client of this node left, or its JOIN was refused */
+    void onLeave(String name) {
+        broadcast("LEFT " + name);
+    }
+
+    /*
+     * Tells the peers that the group got its first member or lost its last one. Called by the shard of the group,
+     * the lines are only queued and the changes of a group come from that one thread, in the order they were made.
+     */
+    void onMembershipChange(String group, boolean hasMembers) {
+        broadcast("GROUP " + group + (hasMembers ? " 1" : " 0"));
+    }
+
+    /* A client of this node created a group */
+    void onCreate(GroupTable.Group group) {
+        broadcast("CREATE " + group.name() + " " + group.owner());
+    }
+
+    /* A client of this node deleted a group */
+    void onDelete(String group) {
+        broadcast("DELETE " + group);
+    }
+
+    /* Forwards a private message to the node of the recipient, false if no node has it */
+    boolean forwardPrivate(User sender, String recipient, String message) {
+        RemoteUser user = remoteUsers.get(recipient);
+        if (user == null) return false;
+        Peer peer = peers.get(user.node());
+        return peer != null && peer.send("PRIVATE " + sender.getName() + " " + recipient + " " + message);
+    }
+
+    /* Sends a group message once to each node with members in the group */
+    void forwardGroup(String group, User sender, String message) {
+        Set<String> nodes = remoteGroups.get(group);
+        if (nodes == null) return;
+        for (String node : nodes) {
+            Peer peer = peers.get(node);
+            if (peer != null) {
+                peer.send("GROUP_MESSAGE " + group + " " + sender.getName() + " " + message);
+            }
+        }
+    }
+
+    /* The users of this node followed by the ones of the other nodes */
+    Collection<User> allUsers() {
+        List<User> all = new ArrayList<>(users.getUsers());
+        for (RemoteUser user : remoteUsers.values()) {
+            all.add(user.user());
+        }
+        return all;
+    }
+
+    int connectedPeers() {
+        int connected = 0;
+        for (Peer peer : peers.values()) {
+            if (peer.isConnected()) connected++;
+        }
+        return connected;
+    }
+
+    int remoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    private void broadcast(String line) {
+        for (Peer peer : peers.values()) {
+            peer.send(line);
+        }
+    }
+
+    /* The lines a peer writes about itself on the link it opened */
+    private void readInbound(Socket socket) {
+        String node = null;
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line = in.readLine();
+            if (line == null || !line.startsWith("NODE ")) return;
+            node = line.substring("NODE ".length());
+            Socket previous = inbound.put(node, socket);
+            if (previous != null) { // The peer restarted before its old link was seen closed
+                previous.close();
+                forget(node);
+            }
+            System.out.println("[Server] Node " + node + " connected");
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ", 4);
+                switch (parts[0]) {
+                    case "RESERVE" -> {
+                        out.write("RESERVED " + parts[1] + " " + (grant(node, parts[2]) ? 0 : 1) + "\n");
+                        out.flush();
+                    }
+                    case "USER" -> remoteUsers.putIfAbsent(parts[1], new RemoteUser(node, new User(parts[1], null)));
+                    case "LEFT" -> removeUser(node, parts[1]);
+                    case "GROUP" -> {
+                        Set<String> nodes = remoteGroups.computeIfAbsent(parts[1], g -> ConcurrentHashMap.newKeySet());
+                        if (parts[2].equals("1")) {
+                            nodes.add(node);
+                        } else {
+                            nodes.remove(node);
+                        }
+                    }
+                    case "CREATE" -> {
+                        if (GroupTable.isValidName(parts[1])) User.getGroupTable().create(parts[1], parts[2]);
+                    }
+                    case "DELETE" -> {
+                        server.deleteGroup(parts[1]);
+                        remoteGroups.remove(parts[1]);
+                    }
+                    case "PRIVATE" -> server.deliverPrivate(sender(node, parts[1]), parts[2], parts[3]);
+                    case "GROUP_MESSAGE" -> server.deliverGroup(parts[1], sender(node, parts[2]), parts[3]);
+                    default -> System.out.println("[Server] Unknown line from node " + node + ": " + parts[0]);
+                }
+            }
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("[Server] Federation exception: " + e);
+        } finally {
+            if (node != null && inbound.remove(node, socket)) {
+                forget(node);
+                System.out.println("[Server] Node " + node + " disconnected");
+            }
+        }
+    }
+
+    /* The name is free if no client of this node has it and it was not granted to another node */
+    private boolean grant(String node, String name) {
+        if (users.findByName(name) != null || reserving.contains(name)) return false;
+        RemoteUser user = remoteUsers.computeIfAbsent(name, n -> new RemoteUser(node, new User(n, null)));
+        return user.node().equals(node);
+    }
+
+    private void removeUser(String node, String name) {
+        RemoteUser user = remoteUsers.get(name);
+        if (user != null && user.node().equals(node)) {
+            remoteUsers.remove(name, user);
+        }
+    }
+
+    /* The sender of a forwarded message, known once its node announced it */
+    private User sender(String node, String name) {
+        RemoteUser user = remoteUsers.get(name);
+        return user != null ? user.user() : new User(name, null);
+    }
+
+    /* Drops the users and the groups of a node whose link closed */
+    private void forget(String node) {
+        remoteUsers.values().removeIf(user -> user.node().equals(node));
+        for (Set<String> nodes : remoteGroups.values()) {
+            nodes.remove(node);
+        }
+    }
+
+    /* The link this node opens to a peer, reopened while the server runs */
+    private class Peer {
+        private final String address;
+        private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> reservations = new ConcurrentHashMap<>();
+        private final AtomicLong nextTag = new AtomicLong();
+        private volatile Link link; // null while disconnected, only changed by the thread of the peer
+
+        Peer(String address) {
+            this.address = address;
+        }
+
+        boolean isConnected() {
+            return link != null;
+        }
+
+        /* Queues the line for the writer of the link, false if the peer is not connected */
+        boolean send(String line) {
+            Link current = link;
+            if (current == null) return false;
+            if (!current.lines.offer(line)) {
+                System.out.println("[Server] Node " + address + " does not keep up, disconnect");
+                current.close();
+                return false;
+            }
+            return true;
+        }
+
+        /* Completed with true if the peer grants the name, null if the peer is not connected */
+        CompletableFuture<Boolean> reserve(String name) {
+            long tag = nextTag.getAndIncrement();
+            CompletableFuture<Boolean> answer = new CompletableFuture<>();
+            reservations.put(tag, answer);
+            if (!send("RESERVE " + tag + " " + name)) {
+                reservations.remove(tag);
+                return null;
+            }
+            return answer;
+        }
+
+        void run() {
+            int colon = address.lastIndexOf(':');
+            String host = address.substring(0, colon);
+            int peerPort = Integer.parseInt(address.substring(colon + 1));
+            while (true) {
+                try (Socket socket = new Socket(host, peerPort);
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                    socket.setTcpNoDelay(true);
+                    Link current = new Link(socket);
+                    link = current; // The lines sent from now on are written after the state of this node
+                    current.writer = Thread.ofVirtual().name("federation-write").start(() -> write(current));
+                    System.out.println("[Server] Connected to node " + address);
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        String[] parts = line.split(" ");
+                        CompletableFuture<Boolean> answer = parts[0].equals("RESERVED") ? reservations.remove(Long.parseLong(parts[1])) : null;
+                        if (answer != null) answer.complete(parts[2].equals("0"));
+                    }
+                    System.out.println("[Server] Node " + address + " disconnected");
+                } catch (IOException e) {
+                    // Not started yet or gone, tried again below
+                }
+                disconnect();
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /*
+         * Introduces this node and sends its users and groups, then the queued lines, flushed once the queue is empty.
+         * A line queued while the state is read may repeat it, the peer applies the lines in order.
+         */
+        private void write(Link link) {
+            try {
+                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(link.socket.getOutputStream(), StandardCharsets.UTF_8));
+                out.write("NODE " + Federation.this.address + "\n");
+                for (User user : users.getUsers()) {
+                    out.write("USER " + user.getName() + "\n");
+                }
+                for (GroupTable.Group group : User.getGroupTable().all()) {
+                    if (group.owner() != null) {
+                        out.write("CREATE " + group.name() + " " + group.owner() + "\n");
+                    }
+                }
+                for (String group : groups.groupsWithMembers()) {
+                    out.write("GROUP " + group + " 1\n");
+                }
+                while (true) {
+                    String line = link.lines.poll();
+                    if (line == null) {
+                        out.flush();
+                        line = link.lines.take();
+                    }
+                    out.write(line);
+                    out.write('\n');
+                }
+            } catch (IOException | InterruptedException e) {
+                link.close(); // The reader of the link sees it closed and disconnects
+            }
+        }
+
+        /* Called by the thread of the peer once its link closed, the pending reservations are refused */
+        private void disconnect() {
+            Link current = link;
+            link = null;
+            if (current != null) {
+                current.close();
+            }
+            for (CompletableFuture<Boolean> answer : reservations.values()) {
+                answer.complete(false);
+            }
+            reservations.clear();
+        }
+    }
+
+    /* An open link to a peer and the lines waiting for its writer */
+    private static final class Link {
+        private final Socket socket;
+        private final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<>(PEER_QUEUE_SIZE);
+        private volatile Thread writer;
+
+        Link(Socket socket) {
+            this.socket = socket;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            Thread thread = writer;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ch.heigvd.dai.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/*
+ * One line of the protocol, encoded in UTF-8 once.
+ * A frame is immutable, so the same instance can be queued to every recipient of a group message.
+ */
+final class Frame {
+    /* Writes nothing, queued to wake up the writer of a connection */
+    static final Frame EMPTY = new Frame(new byte[0]);
+
+    private final byte[] bytes;
+
+    private Frame(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /* The line must already be terminated by END_OF_LINE */
+    static Frame of(String line) {
+        return new Frame(line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /* Bytes already encoded (binary protocol), they must not be modified afterwards */
+    static Frame wrap(byte[] bytes) {
+        return new Frame(bytes);
+    }
+
+    /* One frame holding the given frames one after the other, written to the socket at once */
+    static Frame concat(List<Frame> frames) {
+        if (frames.size() == 1) return frames.get(0);
+        int size = 0;
+        for (Frame frame : frames) {
+            size += frame.bytes.length;
+        }
+        byte[] bytes = new byte[size];
+        int position = 0;
+        for (Frame frame : frames) {
+            System.arraycopy(frame.bytes, 0, bytes, position, frame.bytes.length);
+            position += frame.bytes.length;
+        }
+        return new Frame(bytes);
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    /* Read-only view on the encoded bytes, the bytes themselves are not copied */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,253 @@
+package ch.heigvd.dai.network;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/*
+ * State of the groups, partitioned by group over shard threads: each shard is the only thread that reads and
+ * writes the members and the history of its groups. The client threads hand it work through its lock-free queue
+ * and go on, so a group message takes no lock and the groups of two shards never contend.
+ *
+ * A group always goes to the same shard, which runs its work in the order it was queued: the members see
+ * the messages of a group in the order of the history, and a PARTICIPATE answered before a message was sent
+ * is applied before it is delivered.
+ *
+ * A group without members takes no memory here. Every IDLE_CHECK_MILLIS a shard also closes the history files
+ * of its groups that were not used for the idle timeout, the next message or read opens them again.
+ */
+final class GroupShards {
+    static final long IDLE_CHECK_MILLIS = 10_000;
+
+    private final Shard[] shards;
+    private final HistoryStore store;
+    private final HistoryCache cache;
+    private final long idleNanos;
+    private final ConcurrentHashMap<String, Integer> memberCounts = new ConcurrentHashMap<>(); // copy for the other threads
+    private volatile BiConsumer<String, Boolean> membershipListener = (group, hasMembers) -> {};
+
+    GroupShards(int count, HistoryStore store, HistoryCache cache, HistoryWriter.Durability durability,
+                long fsyncIntervalMillis, long idleMillis, LatencyHistogram appendLatency) {
+        this.store = store;
+        this.cache = cache;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i, new HistoryWriter(store, cache, durability, fsyncIntervalMillis, appendLatency));
+        }
+    }
+
+    /* Called on the shard of the group when it gets its first member (true) or loses its last one (false) */
+    void onMembershipChange(BiConsumer<String, Boolean> listener) {
+        membershipListener = listener;
+    }
+
+    int size() {
+        return shards.length;
+    }
+
+    void subscribe(String group, User user) {
+        Shard shard = shardOf(group);
+        shard.submit(() -> {
+            if (!User.isValidGroupName(group)) { // deleted after the PARTICIPATE was checked
+                user.getGroups().remove(group);
+                return;
+            }
+            if (shard.members.computeIfAbsent(group, g -> new HashSet<>()).add(user)) {
+                shard.onMembersChanged(group);
+            }
+        });
+    }
+
+    /* Removes the user from all the groups it participates in */
+    void unsubscribeAll(User user) {
+        for (String group : user.getGroups()) {
+            Shard shard = shardOf(group);
+            shard.submit(() -> {
+                Set<User> members = shard.members.get(group);
+                if (members != null && members.remove(user)) {
+                    shard.onMembersChanged(group);
+                    if (members.isEmpty()) {
+                        shard.members.remove(group);
+                    }
+                }
+            });
+        }
+    }
+
+    /*
+     * Removes the members of a group already deleted from the group table, then its history.
+     * The messages queued before are still delivered, and written before the history is deleted.
+     */
+    void delete(String group) {
+        Shard shard = shardOf(group);
+        shard.submit(() -> {
+            Set<User> members = shard.members.remove(group);
+            if (members != null) {
+                for (User user : members) {
+                    user.getGroups().remove(group);
+                }
+                memberCounts.remove(group);
+                membershipListener.accept(group, false);
+            }
+            shard.history.flush();
+            shard.history.discard(group);
+            cache.remove(group);
+            try {
+                store.delete(group);
+            } catch (IOException e) {
+                System.out.println("[Server] IO exception: " + e);
+            }
+        });
+    }
+
+    /*
+     * Sends the messages of sender to the members of the group and appends them to the history, on the shard
+     * of the group. The caller only queues them, a recipient gets all of them as a single write.
+     */
+    void publish(String group, User sender, List<String> contents) {
+        publish(group, sender, contents, null);
+    }
+
+    /* Same, written runs on the shard once the messages are in the history and synced as the durability asks */
+    void publish(String group, User sender, List<String> contents, Runnable written) {
+        long queued = System.nanoTime();
+        Shard shard = shardOf(group);
+        shard.submit(() -> shard.publish(group, sender, contents, queued, written));
+    }
+
+    /* The groups that have members */
+    Set<String> groupsWithMembers() {
+        return memberCounts.keySet();
+    }
+
+    /* Number of members of each group that has members */
+    Collection<Integer> memberCounts() {
+        return memberCounts.values();
+    }
+
+    /* Runs what is still queued, writes the history and stops the shards */
+    void close() {
+        for (Shard shard : shards) {
+            shard.running = false;
+            LockSupport.unpark(shard.thread);
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Shard shardOf(String group) {
+        return shards[Math.floorMod(group.hashCode(), shards.length)];
+    }
+
+    private final class Shard {
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Map<String, Set<User>> members = new HashMap<>(); // shard thread only
+        private final HistoryWriter history;
+        private final Thread thread;
+        private volatile boolean waiting; // parked, the next submit unparks it
+        private volatile boolean running = true;
+        private long lastIdleCheck = System.nanoTime();
+
+        Shard(int index, HistoryWriter history) {
+            this.history = history;
+            this.thread = Thread.ofPlatform().name("group-shard-" + index).daemon().start(this::run);
+        }
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private void run() {
+            while (running || !tasks.isEmpty()) {
+                Runnable task;
+                int done = 0;
+                while (done < HistoryWriter.MAX_BATCH_SIZE && (task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.out.println("[Server] Shard exception: " + e);
+                    }
+                    done++;
+                }
+                history.flush();
+                long idleCheckDelay = TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_MILLIS) - (System.nanoTime() - lastIdleCheck);
+                if (idleCheckDelay <= 0) {
+                    store.releaseIdle(idleNanos, group -> shardOf(group) == this);
+                    lastIdleCheck = System.nanoTime();
+                    idleCheckDelay = TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_MILLIS);
+                }
+                if (done > 0) continue;
+
+                // Announced before the queue is checked again, a submit either sees the flag or its task is seen here
+                waiting = true;
+                if (running && tasks.isEmpty()) {
+                    LockSupport.parkNanos(this, Math.max(1, Math.min(history.nanosToSync(), idleCheckDelay)));
+                }
+                waiting = false;
+            }
+            history.close();
+        }
+
+        private void publish(String group, User sender, List<String> contents, long queued, Runnable written) {
+            if (written != null) {
+                history.afterFlush(written);
+            }
+            if (!User.isValidGroupName(group)) return; // deleted after the message was checked
+            Set<User> recipients = members.get(group);
+            if (recipients != null) {
+                // The messages are encoded once per protocol and shared by all the recipients
+                Frame[] frames = new Frame[Protocol.values().length];
+                for (User user : recipients) {
+                    if (user == sender) continue;
+                    Connection recipient = user.getConnection();
+                    Protocol protocol = recipient.getProtocol();
+                    Frame frame = frames[protocol.ordinal()];
+                    if (frame == null) {
+                        frame = frames[protocol.ordinal()] = encode(protocol, group, sender, contents);
+                    }
+                    protocol.announce(recipient, sender);
+                    recipient.write(frame);
+                }
+            }
+            for (String content : contents) {
+                history.append(group, sender.getName() + " " + content, queued);
+            }
+        }
+
+        private void onMembersChanged(String group) {
+            int count = members.get(group).size();
+            Integer previous = count == 0 ? memberCounts.remove(group) : memberCounts.put(group, count);
+            if (previous == null || count == 0) {
+                membershipListener.accept(group, count > 0);
+            }
+        }
+    }
+
+    private static Frame encode(Protocol protocol, String group, User sender, List<String> contents) {
+        if (contents.size() == 1) return protocol.receiveGroup(group, sender, contents.get(0));
+        List<Frame> frames = new ArrayList<>(contents.size());
+        for (String content : contents) {
+            frames.add(protocol.receiveGroup(group, sender, content));
+        }
+        return Frame.concat(frames);
+    }
+}
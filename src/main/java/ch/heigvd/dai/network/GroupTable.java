@@ -0,0 +1,220 @@
+package ch.heigvd.dai.network;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * The groups of the server, created and deleted by the clients. Each name is interned once with an id, so checking
+ * a group and converting between its name and its id (binary protocol) are one lookup, whatever the number of groups.
+ * An id is never reused, a client holding the id of a deleted group cannot reach a new group by mistake.
+ *
+ * The default groups always exist and cannot be deleted. The other ones are kept in a journal,
+ *
+ *   + <group> <owner>   created by owner
+ *   - <group>           deleted
+ *
+ * replayed and rewritten without the deleted groups when the server starts.
+ *
+ * The changes take the lock of the table, the lookups take none. A change queues its journal line with the lock held,
+ * so the lines are in the order of the changes, and appends it after releasing it: the thread that gets the journal
+ * writes every line queued so far, and a change returns once its line is written.
+ */
+final class GroupTable {
+    static final String[] DEFAULT_GROUPS = {"HEIG-VD", "SPORT", "VOITURE"};
+    static final int MAX_NAME_LENGTH = 32;
+
+    /* owner is null for the default groups */
+    record Group(int id, String name, String owner) {}
+
+    private final ConcurrentHashMap<String, Group> byName = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<>(); // sorted, for the pages of LIST_GROUPS
+    private volatile Group[] byId = new Group[64]; // replaced when it grows, a deleted group leaves a null
+    private final ReentrantLock lock = new ReentrantLock();
+    private int nextId; // guarded by lock
+    private final ConcurrentLinkedQueue<String> journalLines = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock journalLock = new ReentrantLock();
+    private BufferedWriter journal; // guarded by journalLock, null until a journal is opened
+
+    GroupTable() {
+        for (String name : DEFAULT_GROUPS) {
+            create(name, null);
+        }
+    }
+
+    /* Upper case letters, digits, - and _, the name is also the name of its history directory */
+    static boolean isValidName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_NAME_LENGTH) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_')) return false;
+        }
+        return true;
+    }
+
+    boolean exists(String name) {
+        return byName.containsKey(name);
+    }
+
+    Group get(String name) {
+        return byName.get(name);
+    }
+
+    /* -1 if there is no such group */
+    int idOf(String name) {
+        Group group = byName.get(name);
+        return group == null ? -1 : group.id();
+    }
+
+    /* null if there is no group with this id */
+    String nameOf(int id) {
+        Group[] groups = byId;
+        Group group = id >= 0 && id < groups.length ? groups[id] : null;
+        return group == null ? null : group.name();
+    }
+
+    int size() {
+        return byName.size();
+    }
+
+    Collection<Group> all() {
+        return byName.values();
+    }
+
+    /* At most count names following after in alphabetical order, from the first name if after is null */
+    List<String> page(String after, int count) {
+        List<String> page = new ArrayList<>(Math.min(count, 128));
+        for (String name : after == null ? names : names.tailSet(after, false)) {
+            if (page.size() == count) break;
+            page.add(name);
+        }
+        return page;
+    }
+
+    /* Creates the group, null if the name is taken */
+    Group create(String name, String owner) {
+        Group group;
+        lock.lock();
+        try {
+            if (byName.containsKey(name)) return null;
+            group = new Group(nextId++, name, owner);
+            Group[] groups = byId;
+            if (group.id() >= groups.length) {
+                byId = groups = Arrays.copyOf(groups, groups.length * 2);
+            }
+            groups[group.id()] = group;
+            byName.put(name, group);
+            names.add(name);
+            if (owner != null) {
+                journalLines.add("+ " + name + " " + owner);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (owner != null) {
+            writeJournal();
+        }
+        return group;
+    }
+
+    /* Deletes the group, false if it does not exist or is a default group */
+    boolean delete(String name) {
+        lock.lock();
+        try {
+            Group group = byName.get(name);
+            if (group == null || group.owner() == null) return false;
+            byName.remove(name);
+            names.remove(name);
+            byId[group.id()] = null;
+            journalLines.add("- " + name);
+        } finally {
+            lock.unlock();
+        }
+        writeJournal();
+        return true;
+    }
+
+    /*
+     * Replays the journal then rewrites it with the groups that still exist, the next changes are appended to it.
+     * Called when the server starts, before the clients can change the groups.
+     */
+    void open(Path file) throws IOException {
+        journalLock.lock();
+        try {
+            close();
+            if (Files.exists(file)) {
+                try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] fields = line.split(" ");
+                        if (fields.length == 3 && fields[0].equals("+") && isValidName(fields[1])) {
+                            create(fields[1], fields[2]);
+                        } else if (fields.length == 2 && fields[0].equals("-")) {
+                            delete(fields[1]);
+                        }
+                    }
+                }
+            }
+            Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+                for (Group group : byName.values()) {
+                    if (group.owner() != null) {
+                        out.write("+ " + group.name() + " " + group.owner() + "\n");
+                    }
+                }
+            }
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journal = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    void close() {
+        journalLock.lock();
+        try {
+            if (journal == null) return;
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.out.println("[Server] IO exception: " + e);
+            }
+            journal = null;
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /* Appends the queued lines, the ones of the other threads too, and flushes them once */
+    private void writeJournal() {
+        journalLock.lock();
+        try {
+            if (journal == null) { // No journal, or the lines of its replay
+                journalLines.clear();
+                return;
+            }
+            String line;
+            while ((line = journalLines.poll()) != null) {
+                journal.write(line + "\n");
+            }
+            journal.flush();
+        } catch (IOException e) {
+            System.out.println("[Server] IO exception: " + e);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+}
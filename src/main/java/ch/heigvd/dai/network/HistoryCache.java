@@ -0,0 +1,287 @@
+package ch.heigvd.dai.network;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * The most recent messages of each group, so that the HISTORY of a client that just joined a group
+ * does not read the disk. The history writer adds the messages once they are stored, with their sequence numbers.
+ *
+ * Each group has its own ring and lock, taken for short copies only: the shards adding the messages of their groups
+ * and the readers of other groups never wait for each other. A group that is not in the cache is read from the store
+ * without any lock, its ring is published first as loading, and the messages appended meanwhile are kept
+ * aside and added once the load is done.
+ *
+ * The rings of all the groups share a memory budget: when it is exceeded the least recently used groups
+ * are evicted, and reloaded from the history store the next time they are read.
+ */
+class HistoryCache {
+    private static final int MESSAGE_OVERHEAD = 56; // String object, its array and the slot in the ring
+
+    private final HistoryStore store;
+    private final int capacity; // messages per group
+    private final long budget; // bytes for all the groups
+    private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong(); // orders the uses of the rings for the eviction
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    HistoryCache(HistoryStore store, int capacity, long budget) {
+        this.store = store;
+        this.capacity = capacity;
+        this.budget = budget;
+    }
+
+    /* Called by the history writer once the messages are in the store */
+    public void onAppend(String group, long firstSequence, List<String> messages) {
+        Ring ring = rings.get(group);
+        if (ring == null) return; // Loaded from the store on the next read
+        ring.lock.lock();
+        try {
+            if (ring.removed) return;
+            if (ring.loading) { // Added once the messages read from the store are in the ring
+                ring.pending.add(new Appended(firstSequence, messages));
+                return;
+            }
+            if (!append(ring, firstSequence, messages)) {
+                remove(group, ring);
+                return;
+            }
+        } finally {
+            ring.lock.unlock();
+        }
+        evict(ring);
+    }
+
+    /* Forgets the messages of a deleted group */
+    public void remove(String group) {
+        Ring ring = rings.get(group);
+        if (ring == null) return;
+        ring.lock.lock();
+        try {
+            remove(group, ring);
+        } finally {
+            ring.lock.unlock();
+        }
+    }
+
+    /* Gives the last count messages to the consumer, returns false if count is larger than what the cache keeps */
+    public boolean readLast(String group, long count, HistoryStore.MessageConsumer consumer) throws IOException {
+        if (count > capacity) return false;
+        Ring ring = rings.get(group);
+        if (ring == null) {
+            ring = load(group);
+            if (ring == null) return false; // Loaded by another reader, read from the store meanwhile
+        } else {
+            hits.increment();
+        }
+        List<String> messages = new ArrayList<>();
+        long first;
+        ring.lock.lock();
+        try {
+            if (ring.loading || ring.removed) return false;
+            ring.lastUsed = clock.incrementAndGet();
+            first = Math.max(ring.nextSequence - ring.length, ring.nextSequence - count);
+            ring.copy(first, ring.nextSequence, messages);
+        } finally {
+            ring.lock.unlock();
+        }
+        for (String message : messages) {
+            consumer.accept(first++, message);
+        }
+        return true;
+    }
+
+    /* Gives the messages from "from" on, returns false if the cache does not have all of them */
+    public boolean read(String group, long from, long count, HistoryStore.MessageConsumer consumer) throws IOException {
+        Ring ring = rings.get(group);
+        if (ring == null) {
+            misses.increment();
+            return false;
+        }
+        List<String> messages = new ArrayList<>();
+        ring.lock.lock();
+        try {
+            if (ring.loading || ring.removed) {
+                misses.increment();
+                return false;
+            }
+            if (from < ring.nextSequence - ring.length) return false; // Older than the ring, not counted as a miss
+            hits.increment();
+            ring.lastUsed = clock.incrementAndGet();
+            ring.copy(from, Math.min(ring.nextSequence, from + Math.min(count, capacity)), messages);
+        } finally {
+            ring.lock.unlock();
+        }
+        long sequence = from;
+        for (String message : messages) {
+            consumer.accept(sequence++, message);
+        }
+        return true;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /*
+     * Reads the last messages of the group from the store without holding any lock, null if another reader is
+     * loading the group. The appends that happen during the read are added after it, in the order of their sequences.
+     */
+    private Ring load(String group) throws IOException {
+        Ring ring = new Ring(capacity);
+        if (rings.putIfAbsent(group, ring) != null) return null;
+        misses.increment();
+        usedBytes.addAndGet(ring.overhead());
+        List<String> loaded = new ArrayList<>();
+        long first;
+        try {
+            first = Math.max(0, store.size(group) - capacity);
+            store.read(group, first, capacity, (sequence, message) -> loaded.add(message));
+        } catch (IOException | RuntimeException e) {
+            remove(group);
+            throw e;
+        }
+        ring.lock.lock();
+        try {
+            if (ring.removed) return null;
+            ring.nextSequence = first;
+            for (String message : loaded) {
+                usedBytes.addAndGet(ring.add(message));
+            }
+            for (Appended appended : ring.pending) {
+                if (!append(ring, appended.firstSequence(), appended.messages())) {
+                    remove(group, ring);
+                    return null;
+                }
+            }
+            ring.pending.clear();
+            ring.loading = false;
+            ring.lastUsed = clock.incrementAndGet();
+        } finally {
+            ring.lock.unlock();
+        }
+        evict(ring);
+        return ring;
+    }
+
+    /*
+     * Adds the messages from firstSequence on, skipping the ones the ring already has.
+     * Returns false if they do not follow the ring, it would have a hole. Called with the lock of the ring held.
+     */
+    private boolean append(Ring ring, long firstSequence, List<String> messages) {
+        if (firstSequence > ring.nextSequence) return false;
+        for (int i = (int) Math.min(messages.size(), ring.nextSequence - firstSequence); i < messages.size(); i++) {
+            usedBytes.addAndGet(ring.add(messages.get(i)));
+        }
+        return true;
+    }
+
+    /*
+     * Evicts the least recently used rings, except the ring being used, until 90% of the budget is used.
+     * Only one thread evicts at a time, the others go on.
+     */
+    private void evict(Ring keep) {
+        if (usedBytes.get() <= budget || !evicting.compareAndSet(false, true)) return;
+        try {
+            List<Map.Entry<String, Ring>> eldest = new ArrayList<>(rings.entrySet());
+            eldest.sort(Comparator.comparingLong(entry -> entry.getValue().lastUsed));
+            for (Map.Entry<String, Ring> entry : eldest) {
+                if (usedBytes.get() <= budget - budget / 10) break;
+                Ring ring = entry.getValue();
+                if (ring == keep) continue;
+                ring.lock.lock();
+                try {
+                    if (!ring.loading && !ring.removed) {
+                        remove(entry.getKey(), ring);
+                        evictions.increment();
+                    }
+                } finally {
+                    ring.lock.unlock();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /* Called with the lock of the ring held */
+    private void remove(String group, Ring ring) {
+        if (ring.removed) return;
+        ring.removed = true;
+        rings.remove(group, ring);
+        usedBytes.addAndGet(-(ring.bytes + ring.overhead()));
+    }
+
+    private record Appended(long firstSequence, List<String> messages) {
+    }
+
+    private static class Ring {
+        private final ReentrantLock lock = new ReentrantLock(); // guards everything but lastUsed
+        private final String[] messages;
+        private long nextSequence; // sequence number of the next message added
+        private int length;
+        private long bytes;
+        private boolean loading = true; // read from the store, the appends wait in pending
+        private boolean removed; // evicted or deleted, a new ring is loaded by the next read
+        private final List<Appended> pending = new ArrayList<>();
+        private volatile long lastUsed;
+
+        Ring(int capacity) {
+            this.messages = new String[capacity];
+        }
+
+        /* Returns the change of the memory used */
+        long add(String message) {
+            int slot = (int) (nextSequence % messages.length);
+            long delta = size(message);
+            if (length == messages.length) {
+                delta -= size(messages[slot]);
+            } else {
+                length++;
+            }
+            messages[slot] = message;
+            nextSequence++;
+            bytes += delta;
+            return delta;
+        }
+
+        void copy(long from, long to, List<String> target) {
+            for (long sequence = from; sequence < to; sequence++) {
+                target.add(messages[(int) (sequence % messages.length)]);
+            }
+        }
+
+        long overhead() {
+            return 16 + 4L * messages.length;
+        }
+
+        private static long size(String message) {
+            return MESSAGE_OVERHEAD + message.length();
+        }
+    }
+}
@@ -0,0 +1,916 @@
+package ch.heigvd.dai.network;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * History of the groups, stored as segment files of at most segmentSize bytes:
+ *
+ *   <root>/<group>/<first sequence number>.log   one message per line, "<sender> <message>"
+ *   <root>/<group>/<first sequence number>.idx   sparse index, (sequence number, position) pairs of 8 + 8 bytes
+ *
+ * Every message gets a sequence number (0 for the first message of the group). The index has one entry
+ * every INDEX_INTERVAL bytes, so a read seeks to the closest entry and skips less than INDEX_INTERVAL bytes
+ * whatever the size of the history.
+ *
+ * Only the shard of a group appends to it (GroupShards). Readers can run on any thread, they only see the messages
+ * that were completely written (GroupLog.committed). Reads go through a memory mapping of the segment
+ * and EXPORT sends the stored bytes as they are, the lines on disk are already lines of the protocol.
+ *
+ * The files of a group are only created by its first message, and closed once the group is idle (releaseIdle):
+ * with many groups only the active ones hold file descriptors and index arrays. A reader pins the group while
+ * it uses its files, a pinned group is not released.
+ *
+ * With Compression.DEFLATE a segment is compressed once it is sealed, into
+ *
+ *   <root>/<group>/<first sequence number>.zlog  blocks of BLOCK_ENTRIES index entries, deflated one by one,
+ *                                               then the offset of every block, the size, the count and ZLOG_MAGIC
+ *
+ * and its .log is deleted, the .idx is kept. A read only inflates the blocks holding the messages it returns.
+ */
+class HistoryStore {
+    public static final int INDEX_INTERVAL = 4096; // bytes of messages between two index entries
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int ACTIVE_READ_SIZE = 64 * 1024; // bytes read at once from the segment being written
+    private static final int BLOCK_ENTRIES = 8; // index entries per compressed block, about 32 KB of messages
+    private static final long ZLOG_MAGIC = 0x5A4C4F4731L; // "ZLOG1"
+    private static final int ZLOG_FOOTER_SIZE = 8 + 8 + 4 + 8; // size, count, blocks, magic
+    // Buffers of ACTIVE_READ_SIZE bytes, as many as the readers of active segments at the same time
+    private static final ConcurrentLinkedQueue<ByteBuffer> READ_BUFFERS = new ConcurrentLinkedQueue<>();
+
+    public enum Compression {
+        NONE,
+        DEFLATE
+    }
+
+    /* Receives the messages read from the history, in order */
+    interface MessageConsumer {
+        void accept(long sequence, String message) throws IOException;
+    }
+
+    /* Receives the complete lines read from the active segment, returns the sequence number after the last one used */
+    private interface LinesConsumer {
+        long accept(ByteBuffer bytes, long position, long current) throws IOException;
+    }
+
+    /* Stored bytes of a range of messages, as they are sent by EXPORT */
+    interface Region {
+        long length();
+
+        /* Sends the bytes from offset, returns the number sent, less than the rest when the socket is full */
+        long sendTo(Connection connection, long offset) throws IOException;
+
+        /* Called once the region was sent or dropped, unpins its group */
+        void close();
+    }
+
+    /* Bytes [position, position + length) of a segment file, sent with FileChannel.transferTo */
+    private static final class FileRegion implements Region {
+        private final GroupLog group;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final FileChannel file;
+        private final long position;
+        private final long length;
+
+        FileRegion(GroupLog group, FileChannel file, long position, long length) {
+            this.group = group;
+            this.file = file;
+            this.position = position;
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public long sendTo(Connection connection, long offset) throws IOException {
+            group.lastUsed = System.nanoTime();
+            return connection.transfer(file, position + offset, length - offset);
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) group.unpin(); // the writer and a closing connection may both call it
+        }
+    }
+
+    /* Bytes [position, position + length) of a compressed segment, inflated one block at a time */
+    private static final class CompressedRegion implements Region {
+        private final GroupLog group;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final Segment segment;
+        private final long position;
+        private final long length;
+        private int block = -1;
+        private ByteBuffer bytes; // the inflated block
+
+        CompressedRegion(GroupLog group, Segment segment, long position, long length) {
+            this.group = group;
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public long sendTo(Connection connection, long offset) throws IOException {
+            group.lastUsed = System.nanoTime();
+            long current = position + offset;
+            int wanted = segment.blockOfPosition(current);
+            if (wanted != block) {
+                bytes = segment.inflate(wanted);
+                block = wanted;
+            }
+            long blockStart = segment.blockStart(block);
+            int from = (int) (current - blockStart);
+            int to = (int) Math.min(bytes.capacity(), position + length - blockStart);
+            ByteBuffer part = bytes.slice(from, to - from);
+            connection.send(part);
+            return part.position();
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) group.unpin(); // the writer and a closing connection may both call it
+        }
+    }
+
+    private final Path root;
+    private final long segmentSize;
+    private final Compression compression;
+    private final ConcurrentHashMap<String, GroupLog> logs = new ConcurrentHashMap<>(); // the open groups
+    private final LongAdder released = new LongAdder();
+
+    HistoryStore(Path root, long segmentSize, Compression compression) {
+        this.root = root;
+        this.segmentSize = segmentSize;
+        this.compression = compression;
+    }
+
+    /* Number of messages in the history of the group */
+    public long size(String group) throws IOException {
+        GroupLog log = pin(group);
+        if (log == null) return 0;
+        try {
+            return log.committed;
+        } finally {
+            log.unpin();
+        }
+    }
+
+    /*
+     * Appends the lines (terminated by END_OF_LINE) at the end of the group history, shard of the group only.
+     * Returns the sequence number of the first line.
+     */
+    public long append(String group, List<ByteBuffer> lines) throws IOException {
+        GroupLog log = open(group, true);
+        log.lastUsed = System.nanoTime();
+        long first = log.committed;
+        log.append(lines);
+        return first;
+    }
+
+    /* Reads at most count messages starting at the sequence number from */
+    public void read(String group, long from, long count, MessageConsumer consumer) throws IOException {
+        GroupLog log = pin(group);
+        if (log == null) return;
+        try {
+            long end = Math.min(log.committed, from + count);
+            if (from < 0 || from >= end) return;
+
+            long sequence = from;
+            for (Segment segment : log.segments.tailMap(log.segments.floorKey(from)).values()) {
+                sequence = segment.read(sequence, end, consumer);
+                if (sequence >= end) return;
+            }
+        } finally {
+            log.unpin();
+        }
+    }
+
+    /*
+     * Adds to regions the parts of the segment files holding at most count messages starting at from,
+     * returns the number of messages they hold. The regions of plain segments are sent with FileChannel.transferTo.
+     * Each region pins the group until it is closed.
+     */
+    public long export(String group, long from, long count, List<Region> regions) throws IOException {
+        GroupLog log = pin(group);
+        if (log == null) return 0;
+        try {
+            long end = Math.min(log.committed, from + count);
+            if (from < 0 || from >= end) return 0;
+
+            for (Segment segment : log.segments.tailMap(log.segments.floorKey(from)).values()) {
+                if (segment.base >= end) break;
+                long start = segment.positionOf(Math.max(from, segment.base));
+                long stop = segment.positionOf(Math.min(end, segment.base + segment.count));
+                if (stop > start) {
+                    log.pins.incrementAndGet();
+                    regions.add(segment.blocks != null
+                            ? new CompressedRegion(log, segment, start, stop - start)
+                            : new FileRegion(log, segment.log, start, stop - start));
+                }
+            }
+            return end - from;
+        } finally {
+            log.unpin();
+        }
+    }
+
+    /* Reads the last count messages of the group */
+    public void readLast(String group, long count, MessageConsumer consumer) throws IOException {
+        long size = size(group);
+        read(group, Math.max(0, size - count), count, consumer);
+    }
+
+    /* Syncs the segments being written to the disk */
+    public void force() throws IOException {
+        for (GroupLog log : logs.values()) {
+            log.segments.lastEntry().getValue().force();
+        }
+    }
+
+    /* Syncs the segment being written of one group, each shard syncs its own groups */
+    public void force(String group) throws IOException {
+        GroupLog log = logs.get(group);
+        if (log != null) {
+            log.segments.lastEntry().getValue().force();
+        }
+    }
+
+    public void close() {
+        for (GroupLog log : logs.values()) {
+            log.close();
+        }
+    }
+
+    /*
+     * Closes the files of the groups accepted by owned that were neither written nor read for idleNanos,
+     * called by the shard of these groups so that no append runs meanwhile. Returns the number of groups closed.
+     */
+    public int releaseIdle(long idleNanos, Predicate<String> owned) {
+        long now = System.nanoTime();
+        int count = 0;
+        for (GroupLog log : logs.values()) {
+            if (now - log.lastUsed < idleNanos || !owned.test(log.group) || !log.release()) continue;
+            logs.remove(log.group, log);
+            log.close();
+            released.increment();
+            count++;
+        }
+        return count;
+    }
+
+    /* Deletes the history of a deleted group, called by its shard. Its readers fail, the group is gone */
+    public void delete(String group) throws IOException {
+        GroupLog log = logs.remove(group);
+        if (log != null) {
+            log.released = true;
+            log.close();
+        }
+        Path directory = root.resolve(group.toLowerCase());
+        if (Files.isDirectory(directory)) {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+        Path legacyFile = legacyPathOf(group);
+        if (legacyFile != null) {
+            Files.deleteIfExists(legacyFile);
+        }
+    }
+
+    /* Groups whose files are open */
+    public int getOpenGroups() {
+        return logs.size();
+    }
+
+    /* Groups closed because they were idle, since the start */
+    public long getReleasedGroups() {
+        return released.sum();
+    }
+
+    /* The group, pinned until unpin, null if it has no history yet. Does not create anything */
+    private GroupLog pin(String group) throws IOException {
+        while (true) {
+            GroupLog log = open(group, false);
+            if (log == null) return null;
+            log.pins.incrementAndGet();
+            if (!log.released) {
+                log.lastUsed = System.nanoTime();
+                return log;
+            }
+            // Being released by its shard, which removes it from the map unless a reader pinned it first
+            log.unpin();
+            Thread.onSpinWait();
+        }
+    }
+
+    private GroupLog open(String group, boolean create) throws IOException {
+        GroupLog log = logs.get(group);
+        if (log != null) return log;
+        Path directory = root.resolve(group.toLowerCase());
+        Path legacyFile = legacyPathOf(group);
+        if (!create && !Files.isDirectory(directory) && (legacyFile == null || !Files.exists(legacyFile))) return null;
+        try {
+            return logs.computeIfAbsent(group, g -> {
+                try {
+                    return new GroupLog(g, directory, legacyFile);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /*
+     * File used before the history was split in segments, imported on first access. Only the default groups existed
+     * then: null for the groups of the clients, a path built from their names could reach any file of the server.
+     */
+    static Path legacyPathOf(String group) {
+        for (String name : GroupTable.DEFAULT_GROUPS) {
+            if (name.equals(group)) return Path.of(group.toLowerCase() + ".txt");
+        }
+        return null;
+    }
+
+    private class GroupLog {
+        private final String group;
+        private final Path directory;
+        private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+        private volatile long committed; // number of messages completely written
+        private volatile long lastUsed = System.nanoTime();
+        private final AtomicInteger pins = new AtomicInteger(); // readers using the files
+        private volatile boolean released; // the files are being closed, pin opens the group again
+
+        GroupLog(String group, Path directory, Path legacyFile) throws IOException {
+            this.group = group;
+            this.directory = directory;
+            boolean imported = Files.isDirectory(directory);
+            Files.createDirectories(directory);
+
+            List<String> files;
+            try (Stream<Path> list = Files.list(directory)) {
+                files = list.map(p -> p.getFileName().toString()).toList();
+            }
+            for (String name : files) {
+                if (name.endsWith(".tmp")) { // A compression stopped by a crash, the .log is still there
+                    Files.delete(directory.resolve(name));
+                } else if (name.endsWith(".log") || name.endsWith(".zlog")) {
+                    long base = Long.parseLong(name.substring(0, name.lastIndexOf('.')));
+                    segments.putIfAbsent(base, new Segment(directory, base));
+                }
+            }
+            if (segments.isEmpty()) {
+                segments.put(0L, new Segment(directory, 0));
+            }
+            for (Segment segment : segments.values()) {
+                segment.recover();
+            }
+            Segment last = segments.lastEntry().getValue();
+            for (Segment segment : segments.headMap(last.base).values()) {
+                segment.seal(compression);
+            }
+            committed = last.base + last.count;
+            if (last.blocks != null) { // Stopped between the compression of a segment and the creation of the next one
+                last = new Segment(directory, committed);
+                last.recover();
+                segments.put(last.base, last);
+            }
+
+            if (!imported && legacyFile != null && Files.exists(legacyFile)) {
+                importLegacy(legacyFile);
+            }
+        }
+
+        private void importLegacy(Path legacyFile) throws IOException {
+            List<ByteBuffer> lines = new ArrayList<>();
+            try (BufferedReader reader = Files.newBufferedReader(legacyFile)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+                    if (lines.size() == 1024) {
+                        append(lines);
+                        lines.clear();
+                    }
+                }
+            }
+            append(lines);
+            System.out.println("[Server] Imported " + committed + " messages from " + legacyFile);
+        }
+
+        void unpin() {
+            pins.decrementAndGet();
+        }
+
+        /* Marks the group released if no reader pins it, a reader pinning it meanwhile sees the mark and retries */
+        boolean release() {
+            if (pins.get() != 0) return false;
+            released = true;
+            if (pins.get() == 0) return true;
+            released = false;
+            return false;
+        }
+
+        void close() {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        }
+
+        void append(List<ByteBuffer> lines) throws IOException {
+            int from = 0;
+            while (from < lines.size()) {
+                Segment segment = segments.lastEntry().getValue();
+                // Lines that still fit in the segment, a segment always takes at least one line
+                long bytes = segment.size;
+                int to = from;
+                while (to < lines.size() && (to == from && segment.size == 0 || bytes + lines.get(to).remaining() <= segmentSize)) {
+                    bytes += lines.get(to).remaining();
+                    to++;
+                }
+                if (to == from) {
+                    segment.seal(compression); // it will not be written anymore
+                    segment = new Segment(directory, committed);
+                    segment.recover();
+                    segments.put(segment.base, segment);
+                    continue;
+                }
+                segment.append(committed, lines.subList(from, to));
+                committed += to - from;
+                from = to;
+            }
+        }
+    }
+
+    /* The compressed file of a segment and where each block starts in it */
+    private record Blocks(FileChannel file, long[] offsets) {
+        int count() {
+            return offsets.length - 1;
+        }
+    }
+
+    /* A block of a compressed segment once inflated */
+    private record Inflated(int block, ByteBuffer bytes) {}
+
+    private static class Segment {
+        private final long base; // sequence number of the first message
+        private final Path logPath;
+        private final Path indexPath;
+        private final Path compressedPath;
+        private FileChannel log; // still open once the segment is compressed, null if it was compressed before a restart
+        private FileChannel index;
+        // Sparse index in memory, the arrays are replaced when they grow so readers can use them without lock
+        private volatile long[] indexSequences = new long[16];
+        private volatile long[] indexPositions = new long[16];
+        private volatile int indexLength;
+        private volatile long size; // bytes
+        private volatile long count; // messages
+        private long lastIndexedPosition;
+        private volatile MappedByteBuffer sealed; // whole file, mapped once the segment is full
+        private volatile Blocks blocks; // set once the segment is compressed, the messages are only read from there
+        private volatile Inflated lastInflated; // a HISTORY reads its parts one after the other, often in the same block
+
+        Segment(Path directory, long base) {
+            this.base = base;
+            this.logPath = directory.resolve(String.format("%020d.log", base));
+            this.indexPath = directory.resolve(String.format("%020d.idx", base));
+            this.compressedPath = directory.resolve(String.format("%020d.zlog", base));
+        }
+
+        /*
+         * Opens the files and loads the index. The entries missing at the end of the index are rebuilt
+         * from the log and a line cut by a crash at the end of the log is dropped.
+         */
+        void recover() throws IOException {
+            if (Files.exists(compressedPath)) {
+                recoverCompressed();
+                return;
+            }
+            log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            long entries = index.size() / INDEX_ENTRY_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            for (long i = 0; i < entries; i++) {
+                buffer.clear();
+                index.read(buffer, i * INDEX_ENTRY_SIZE);
+                buffer.flip();
+                long sequence = buffer.getLong();
+                long position = buffer.getLong();
+                if (position >= log.size()) break;
+                addIndexEntry(sequence, position);
+            }
+            index.truncate((long) indexLength * INDEX_ENTRY_SIZE);
+            index.position(index.size());
+
+            // Counts the messages after the last index entry, less than INDEX_INTERVAL bytes unless the index was lost
+            long sequence = indexLength == 0 ? base : indexSequences[indexLength - 1];
+            long position = indexLength == 0 ? 0 : indexPositions[indexLength - 1];
+            lastIndexedPosition = position;
+            long lineStart = position;
+            long end = log.size();
+            ByteBuffer read = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            while (position < end) {
+                read.clear();
+                int n = log.read(read, position);
+                if (n <= 0) break;
+                for (int i = 0; i < n; i++) {
+                    if (read.get(i) != '\n') continue;
+                    if (indexLength == 0 || lineStart - lastIndexedPosition >= INDEX_INTERVAL) {
+                        addIndexEntry(sequence, lineStart);
+                        writeIndexEntry(sequence, lineStart);
+                        lastIndexedPosition = lineStart;
+                    }
+                    sequence++;
+                    lineStart = position + i + 1;
+                }
+                position += n;
+            }
+            log.truncate(lineStart);
+            log.position(lineStart);
+            size = lineStart;
+            count = sequence - base;
+        }
+
+        void append(long firstSequence, List<ByteBuffer> lines) throws IOException {
+            long position = size;
+            long sequence = firstSequence;
+            for (ByteBuffer line : lines) {
+                if (indexLength == 0 || position - lastIndexedPosition >= INDEX_INTERVAL) {
+                    addIndexEntry(sequence, position);
+                    writeIndexEntry(sequence, position);
+                    lastIndexedPosition = position;
+                }
+                position += line.remaining();
+                sequence++;
+            }
+            ByteBuffer[] buffers = lines.toArray(new ByteBuffer[0]);
+            long written = 0;
+            while (written < position - size) {
+                written += log.write(buffers);
+            }
+            count += lines.size();
+            size = position;
+        }
+
+        /* Reads the messages from sequence up to end (excluded) in this segment, returns the next sequence number to read */
+        long read(long sequence, long end, MessageConsumer consumer) throws IOException {
+            int entry = indexEntryOf(sequence);
+            if (entry < 0) return sequence;
+            long current = indexSequences[entry];
+            Blocks compressed = blocks;
+            MappedByteBuffer file = sealed;
+            if (file != null) {
+                current = readLines(file.slice((int) indexPositions[entry], (int) (size - indexPositions[entry])), 0, current, sequence, end, consumer);
+            } else if (compressed == null) {
+                current = readActive(indexPositions[entry], size, current, end,
+                        (bytes, position, first) -> readLines(bytes, 0, first, sequence, end, consumer));
+            } else {
+                int first = entry / BLOCK_ENTRIES;
+                for (int block = first; block < compressed.count() && current < end; block++) {
+                    int start = block == first ? (int) (indexPositions[entry] - blockStart(block)) : 0;
+                    current = readLines(inflate(block), start, current, sequence, end, consumer);
+                }
+            }
+            return Math.max(current, sequence);
+        }
+
+        /* Gives the lines of bytes from start to the consumer, the first one being current. Returns the next sequence number */
+        private static long readLines(ByteBuffer bytes, int start, long current, long sequence, long end, MessageConsumer consumer) throws IOException {
+            byte[] line = new byte[256];
+            int lineStart = start;
+            for (int i = start; i < bytes.limit() && current < end; i++) {
+                if (bytes.get(i) != '\n') continue;
+                if (current >= sequence) {
+                    int length = i - lineStart;
+                    if (length > line.length) {
+                        line = new byte[Math.max(length, line.length * 2)];
+                    }
+                    bytes.get(lineStart, line, 0, length);
+                    consumer.accept(current, new String(line, 0, length, StandardCharsets.UTF_8));
+                }
+                lineStart = i + 1;
+                current++;
+            }
+            return current;
+        }
+
+        /* Byte position of the message sequence, the end of the segment for base + count */
+        long positionOf(long sequence) throws IOException {
+            long limit = size;
+            if (sequence >= base + count) return limit;
+            int entry = indexEntryOf(sequence);
+            long current = indexSequences[entry];
+            long start = indexPositions[entry];
+            ByteBuffer bytes;
+            int i = 0;
+            MappedByteBuffer file = sealed;
+            if (file != null) {
+                bytes = file.slice((int) start, (int) (limit - start));
+            } else if (blocks == null) {
+                if (current >= sequence) return start;
+                long[] found = {limit};
+                readActive(start, limit, current, sequence, (lines, position, first) -> {
+                    for (int j = 0; j < lines.limit(); j++) {
+                        if (lines.get(j) == '\n' && ++first == sequence) {
+                            found[0] = position + j + 1;
+                            break;
+                        }
+                    }
+                    return first;
+                });
+                return found[0];
+            } else { // Lines never cross a block, the message is in the block of its index entry
+                int block = entry / BLOCK_ENTRIES;
+                bytes = inflate(block);
+                i = (int) (start - blockStart(block));
+                start -= i;
+            }
+            while (current < sequence && i < bytes.limit()) {
+                if (bytes.get(i++) == '\n') current++;
+            }
+            return start + i;
+        }
+
+        /* Byte position of the first message of the block, in the uncompressed segment */
+        long blockStart(int block) {
+            return indexPositions[block * BLOCK_ENTRIES];
+        }
+
+        private long blockEnd(int block) {
+            int next = (block + 1) * BLOCK_ENTRIES;
+            return next < indexLength ? indexPositions[next] : size;
+        }
+
+        /* Block holding the byte at this position of the uncompressed segment */
+        int blockOfPosition(long position) {
+            int low = 0;
+            int high = blocks.count() - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (blockStart(middle) <= position) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        /* The messages of a compressed block, the buffer is shared and must only be read with absolute gets */
+        ByteBuffer inflate(int block) throws IOException {
+            Inflated last = lastInflated;
+            if (last != null && last.block() == block) return last.bytes();
+            Blocks compressed = blocks;
+            long offset = compressed.offsets()[block];
+            ByteBuffer input = ByteBuffer.allocate((int) (compressed.offsets()[block + 1] - offset));
+            while (input.hasRemaining()) {
+                if (compressed.file().read(input, offset + input.position()) < 0) {
+                    throw new IOException("Compressed segment " + compressedPath + " is truncated");
+                }
+            }
+            byte[] output = new byte[(int) (blockEnd(block) - blockStart(block))];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(input.array());
+                int length = 0;
+                while (length < output.length && !inflater.finished()) {
+                    length += inflater.inflate(output, length, output.length - length);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Compressed segment " + compressedPath + " is corrupted", e);
+            } finally {
+                inflater.end();
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(output);
+            lastInflated = new Inflated(block, bytes);
+            return bytes;
+        }
+
+        /* Index entry of the closest message at or before sequence, -1 if the segment has no message */
+        private int indexEntryOf(long sequence) {
+            int length = indexLength; // read first, the arrays read after hold at least length entries
+            long[] sequences = indexSequences;
+            if (length == 0 || sequence < base) return -1;
+            int low = 0;
+            int high = length - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (sequences[middle] <= sequence) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        /*
+         * Reads the bytes [position, limit) of the segment being written with positional reads into a pooled buffer,
+         * instead of mapping the file again at each read as it grows. Each buffer given to the consumer ends with
+         * a complete line, a line larger than the buffer is read into a larger one.
+         */
+        private long readActive(long position, long limit, long current, long end, LinesConsumer consumer) throws IOException {
+            ByteBuffer pooled = READ_BUFFERS.poll();
+            if (pooled == null) {
+                pooled = ByteBuffer.allocate(ACTIVE_READ_SIZE);
+            }
+            ByteBuffer buffer = pooled;
+            try {
+                int kept = 0; // bytes of a line too long for the buffer, at its start
+                while (position + kept < limit && current < end) {
+                    buffer.clear().position(kept);
+                    buffer.limit((int) Math.min(buffer.capacity(), limit - position));
+                    while (buffer.hasRemaining()) {
+                        if (log.read(buffer, position + buffer.position()) < 0) {
+                            throw new IOException("Segment " + logPath + " is truncated");
+                        }
+                    }
+                    int last = buffer.limit() - 1;
+                    while (last >= kept && buffer.get(last) != '\n') last--;
+                    if (last < kept) { // The line does not fit, read it again into a buffer twice larger
+                        kept = buffer.limit();
+                        if (kept == limit - position) break; // Cannot happen, the size only grows by whole lines
+                        buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+                        continue;
+                    }
+                    buffer.limit(last + 1);
+                    current = consumer.accept(buffer, position, current);
+                    position += last + 1;
+                    kept = 0;
+                }
+                return current;
+            } finally {
+                READ_BUFFERS.offer(pooled.clear());
+            }
+        }
+
+        /* Called once the writer moved to the next segment */
+        void seal(Compression compression) throws IOException {
+            if (blocks != null) return;
+            force();
+            if (compression == Compression.DEFLATE && indexLength > 0) {
+                compress();
+            } else if (size <= Integer.MAX_VALUE) { // a MappedByteBuffer is indexed by int
+                sealed = log.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+
+        /*
+         * Writes the .zlog then deletes the .log. The .zlog only gets its name once it is complete and synced,
+         * so after a crash the segment is either compressed or still in its .log.
+         */
+        private void compress() throws IOException {
+            int count = (indexLength + BLOCK_ENTRIES - 1) / BLOCK_ENTRIES;
+            long[] offsets = new long[count + 1];
+            Path temporary = compressedPath.resolveSibling(compressedPath.getFileName() + ".tmp");
+            Deflater deflater = new Deflater();
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                byte[] output = new byte[READ_BUFFER_SIZE];
+                long offset = 0;
+                for (int block = 0; block < count; block++) {
+                    ByteBuffer input = ByteBuffer.allocate((int) (blockEnd(block) - blockStart(block)));
+                    while (input.hasRemaining()) {
+                        log.read(input, blockStart(block) + input.position());
+                    }
+                    offsets[block] = offset;
+                    deflater.reset();
+                    deflater.setInput(input.array());
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int length = deflater.deflate(output);
+                        offset += writeFully(out, ByteBuffer.wrap(output, 0, length));
+                    }
+                }
+                offsets[count] = offset;
+
+                ByteBuffer footer = ByteBuffer.allocate(offsets.length * 8 + ZLOG_FOOTER_SIZE);
+                for (long blockOffset : offsets) {
+                    footer.putLong(blockOffset);
+                }
+                footer.putLong(size).putLong(this.count).putInt(count).putLong(ZLOG_MAGIC).flip();
+                writeFully(out, footer);
+                out.force(true);
+            } finally {
+                deflater.end();
+            }
+            Files.move(temporary, compressedPath, StandardCopyOption.ATOMIC_MOVE);
+            blocks = new Blocks(FileChannel.open(compressedPath, StandardOpenOption.READ), offsets);
+            // log stays open until close, an EXPORT or a read started before may still be using it
+            Files.delete(logPath);
+        }
+
+        /* Opens a compressed segment, its index was complete when it was compressed */
+        private void recoverCompressed() throws IOException {
+            FileChannel file = FileChannel.open(compressedPath, StandardOpenOption.READ);
+            ByteBuffer footer = ByteBuffer.allocate(ZLOG_FOOTER_SIZE);
+            file.read(footer, file.size() - ZLOG_FOOTER_SIZE);
+            footer.flip();
+            long segmentSize = footer.getLong();
+            long segmentCount = footer.getLong();
+            int count = footer.getInt();
+            if (footer.getLong() != ZLOG_MAGIC) {
+                file.close();
+                throw new IOException("Compressed segment " + compressedPath + " is corrupted");
+            }
+            ByteBuffer offsets = ByteBuffer.allocate((count + 1) * 8);
+            file.read(offsets, file.size() - ZLOG_FOOTER_SIZE - offsets.capacity());
+            offsets.flip();
+            long[] blockOffsets = new long[count + 1];
+            for (int i = 0; i <= count; i++) {
+                blockOffsets[i] = offsets.getLong();
+            }
+
+            index = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long entries = index.size() / INDEX_ENTRY_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            for (long i = 0; i < entries; i++) {
+                buffer.clear();
+                index.read(buffer, i * INDEX_ENTRY_SIZE);
+                buffer.flip();
+                addIndexEntry(buffer.getLong(), buffer.getLong());
+            }
+            size = segmentSize;
+            this.count = segmentCount;
+            blocks = new Blocks(file, blockOffsets);
+            Files.deleteIfExists(logPath); // The crash happened after the compression, before the .log was deleted
+        }
+
+        private static long writeFully(FileChannel out, ByteBuffer bytes) throws IOException {
+            long written = bytes.remaining();
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            return written;
+        }
+
+        void force() throws IOException {
+            log.force(false);
+            index.force(false);
+        }
+
+        void close() {
+            try {
+                if (log != null) log.close();
+                index.close();
+                if (blocks != null) blocks.file().close();
+            } catch (IOException e) {
+                System.out.println("[Server] IO exception: " + e);
+            }
+        }
+
+        private void addIndexEntry(long sequence, long position) {
+            if (indexLength == indexSequences.length) {
+                indexSequences = Arrays.copyOf(indexSequences, indexLength * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexLength * 2);
+            }
+            indexSequences[indexLength] = sequence;
+            indexPositions[indexLength] = position;
+            indexLength++; // published last, readers only use the entries below indexLength
+        }
+
+        private void writeIndexEntry(long sequence, long position) throws IOException {
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            entry.putLong(sequence).putLong(position).flip();
+            while (entry.hasRemaining()) {
+                index.write(entry);
+            }
+        }
+    }
+}
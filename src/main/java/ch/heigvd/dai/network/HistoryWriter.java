@@ -0,0 +1,128 @@
+package ch.heigvd.dai.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Appends the group messages of one shard to the history store.
+ * The shard thread buffers the lines of the messages it delivers and flushes them after each pass over its queue,
+ * with one gathering write per group (group commit). Only the shard thread uses it, and it keeps nothing
+ * for the groups that received no message since the last flush.
+ */
+class HistoryWriter {
+    public enum Durability {
+        NONE, // the OS decides when the data reaches the disk
+        BATCH, // fsync after every batch, the group messages are acknowledged after it
+        INTERVAL // fsync at most every --fsync-interval milliseconds
+    }
+
+    public static final int MAX_BATCH_SIZE = 1024; // tasks per pass of a shard, so lines per group commit at most
+
+    private record Entry(String message, ByteBuffer line, long queued) {}
+
+    private final HistoryStore store;
+    private final HistoryCache cache;
+    private final Durability durability;
+    private final LatencyHistogram latency; // from the request queued to the line written, the fsync is not waited for
+    private final long fsyncIntervalNanos;
+    private final Map<String, List<Entry>> entriesByGroup = new LinkedHashMap<>();
+    private final Set<String> unsynced = new HashSet<>(); // groups written since the last fsync
+    private final List<ByteBuffer> lines = new ArrayList<>();
+    private final List<String> messages = new ArrayList<>();
+    private final List<Runnable> acks = new ArrayList<>(); // responses waiting for the next flush
+    private long lastSync = System.nanoTime();
+
+    HistoryWriter(HistoryStore store, HistoryCache cache, Durability durability, long fsyncIntervalMillis, LatencyHistogram latency) {
+        this.store = store;
+        this.cache = cache;
+        this.durability = durability;
+        this.latency = latency;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+    }
+
+    /* Buffers the message ("<sender> <message>") until the next flush, queued is when its request was queued */
+    public void append(String group, String message, long queued) {
+        entriesByGroup.computeIfAbsent(group, g -> new ArrayList<>())
+                .add(new Entry(message, ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8)), queued));
+    }
+
+    /* Runs ack after the next flush, once the messages appended before are written and synced as the durability asks */
+    public void afterFlush(Runnable ack) {
+        acks.add(ack);
+    }
+
+    /* Writes the buffered messages, then syncs them if the durability asks for it, then runs the acks */
+    public void flush() {
+        try {
+            for (Map.Entry<String, List<Entry>> entries : entriesByGroup.entrySet()) {
+                if (entries.getValue().isEmpty()) continue;
+                for (Entry entry : entries.getValue()) {
+                    lines.add(entry.line());
+                    messages.add(entry.message());
+                }
+                long first = store.append(entries.getKey(), lines);
+                cache.onAppend(entries.getKey(), first, messages);
+                long written = System.nanoTime();
+                for (Entry entry : entries.getValue()) {
+                    latency.record(written - entry.queued());
+                }
+                lines.clear();
+                messages.clear();
+                unsynced.add(entries.getKey());
+            }
+
+            if (!unsynced.isEmpty() && (durability == Durability.BATCH
+                    || (durability == Durability.INTERVAL && System.nanoTime() - lastSync >= fsyncIntervalNanos))) {
+                sync();
+            }
+        } catch (IOException e) {
+            System.out.println("[Server] IO exception: " + e);
+        } finally { // the lines of a failed write are lost, as the next writes go on
+            entriesByGroup.clear();
+            lines.clear();
+            messages.clear();
+            for (Runnable ack : acks) {
+                ack.run();
+            }
+            acks.clear();
+        }
+    }
+
+    /* Forgets the messages of a deleted group that are not written yet */
+    public void discard(String group) {
+        entriesByGroup.remove(group);
+        unsynced.remove(group);
+    }
+
+    /* How long the shard may sleep before the next fsync is due, Long.MAX_VALUE when nothing waits for one */
+    public long nanosToSync() {
+        if (durability != Durability.INTERVAL || unsynced.isEmpty()) return Long.MAX_VALUE;
+        return Math.max(1, fsyncIntervalNanos - (System.nanoTime() - lastSync));
+    }
+
+    /* Writes and syncs what is still buffered, whatever the durability */
+    public void close() {
+        flush();
+        try {
+            sync();
+        } catch (IOException e) {
+            System.out.println("[Server] IO exception: " + e);
+        }
+    }
+
+    private void sync() throws IOException {
+        for (String group : unsynced) {
+            store.force(group);
+        }
+        unsynced.clear();
+        lastSync = System.nanoTime();
+    }
+}
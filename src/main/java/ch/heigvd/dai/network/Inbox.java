@@ -0,0 +1,360 @@
+package ch.heigvd.dai.network;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Private messages sent to users that are not connected, delivered at their next JOIN.
+ * The messages of a user stay in memory up to MEMORY_PER_USER while all the users together stay under the budget,
+ * after that they are appended to the file <dir>/<user>.txt. Only the users with messages in memory or being delivered
+ * are in the maps, the others are found again from their files: the heap used does not depend on the number of users
+ * that have messages waiting on the disk. The messages are stored as the history, "<sender> <message>" lines.
+ *
+ * The users are spread over stripes, each with its lock and the file it appended to last, kept open: the messages sent
+ * to a user that is not connected usually come one after the other. A user is only changed with the lock of its stripe.
+ *
+ * take hands the messages to a delivery without removing them from the file, ack removes the ones delivered
+ * once the delivery ended: a client that leaves during its delivery, or a crash, does not lose the rest.
+ * close writes the messages still in memory to the files, they are found again after a restart.
+ */
+final class Inbox {
+    static final int MEMORY_PER_USER = 16 * 1024; // bytes, about 100 messages of 100 characters
+    private static final int STRIPES = 64;
+
+    private static final class Box {
+        private final List<String> messages = new ArrayList<>(); // in memory, after the ones of the file
+        private long bytes; // of the messages in memory
+        private long fileBytes = -1; // size of the file, -1 if there is none
+        private boolean delivering; // taken and not acknowledged yet, a second take gets nothing
+    }
+
+    private static final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<String, Box> boxes = new HashMap<>();
+        private String openUser; // the user of the file kept open
+        private OutputStream openFile;
+    }
+
+    /* Messages taken for a delivery, the first fileBytes bytes of the file of the user then its messages in memory */
+    record Backlog(String user, List<String> messages, long fileBytes) {}
+
+    private final Path dir;
+    private final long memoryBudget;
+    private final long maxBytesPerUser;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+
+    /* maxBytesPerUser 0 keeps no message */
+    Inbox(Path dir, long memoryBudget, long maxBytesPerUser) {
+        this.dir = dir;
+        this.memoryBudget = memoryBudget;
+        this.maxBytesPerUser = maxBytesPerUser;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /* Keeps the message for the recipient, false if its inbox is full or cannot be written */
+    boolean store(String recipient, String sender, String content) {
+        if (maxBytesPerUser == 0) return false;
+        String message = sender + " " + content;
+        long size = sizeOf(message);
+        Stripe stripe = stripeOf(recipient);
+        stripe.lock.lock();
+        try {
+            Box box = box(stripe, recipient);
+            if (Math.max(box.fileBytes, 0) + box.bytes + size > maxBytesPerUser) {
+                release(stripe, recipient, box);
+                return false;
+            }
+
+            // Once a user has a file its next messages follow in the file, so they are delivered in order
+            if (box.fileBytes < 0 && box.bytes + size <= MEMORY_PER_USER && memoryBytes.get() + size <= memoryBudget) {
+                box.messages.add(message);
+                box.bytes += size;
+                memoryBytes.addAndGet(size);
+                stored.increment();
+                return true;
+            }
+            spill(stripe, recipient, box, message);
+            stored.increment();
+            release(stripe, recipient, box);
+            return true;
+        } catch (IOException e) {
+            System.out.println("[Server] IO exception: " + e);
+            return false;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /* The messages waiting for the user, oldest first, null if there are none or they are being delivered */
+    Backlog take(String user) {
+        Stripe stripe = stripeOf(user);
+        List<String> messages = new ArrayList<>();
+        long fileBytes;
+        stripe.lock.lock();
+        try {
+            Box box = box(stripe, user);
+            if (box.delivering || box.fileBytes <= 0 && box.messages.isEmpty()) {
+                release(stripe, user, box);
+                return null;
+            }
+            if (user.equals(stripe.openUser)) {
+                stripe.openFile.flush();
+            }
+            box.delivering = true;
+            fileBytes = Math.max(box.fileBytes, 0);
+            messages.addAll(box.messages); // After the lines of the file, added below
+            memoryBytes.addAndGet(-box.bytes);
+            box.messages.clear();
+            box.bytes = 0;
+        } catch (IOException e) {
+            System.out.println("[Server] IO exception: " + e);
+            return null;
+        } finally {
+            stripe.lock.unlock();
+        }
+
+        // The first fileBytes bytes do not change until the ack, the file is read without the lock
+        if (fileBytes > 0) {
+            List<String> lines = new ArrayList<>();
+            try (BufferedReader in = Files.newBufferedReader(fileOf(user), StandardCharsets.UTF_8)) {
+                long read = 0;
+                String line;
+                while (read < fileBytes && (line = in.readLine()) != null) {
+                    lines.add(line);
+                    read += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                }
+            } catch (IOException e) { // Delivered at the next JOIN
+                System.out.println("[Server] IO exception: " + e);
+                lines.clear();
+                fileBytes = 0;
+            }
+            messages.addAll(0, lines);
+        }
+        return new Backlog(user, messages, fileBytes);
+    }
+
+    /*
+     * Removes the first count messages of the backlog, the other ones wait for the next delivery before the messages
+     * stored meanwhile. Returns true if messages are waiting, stored during the delivery or not delivered.
+     */
+    boolean ack(Backlog backlog, int count) {
+        String user = backlog.user();
+        Stripe stripe = stripeOf(user);
+        delivered.add(count);
+        stripe.lock.lock();
+        try {
+            Box box = box(stripe, user);
+            box.delivering = false;
+            List<String> rest = backlog.messages().subList(count, backlog.messages().size());
+            long size = Math.max(box.fileBytes, 0);
+            if (rest.isEmpty() && size == backlog.fileBytes()) { // Everything delivered, nothing stored meanwhile
+                if (size > 0) {
+                    if (user.equals(stripe.openUser)) closeFile(stripe);
+                    Files.deleteIfExists(fileOf(user));
+                    box.fileBytes = -1;
+                }
+            } else if (!rest.isEmpty() || backlog.fileBytes() > 0) {
+                rewrite(stripe, user, box, rest, backlog.fileBytes());
+            }
+            boolean waiting = box.fileBytes > 0 || !box.messages.isEmpty();
+            release(stripe, user, box);
+            return waiting;
+        } catch (IOException e) {
+            System.out.println("[Server] IO exception, the messages of " + user + " may be delivered again: " + e);
+            return false;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /* Writes the messages still in memory to the files */
+    void close() {
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (Map.Entry<String, Box> entry : stripe.boxes.entrySet()) {
+                    if (entry.getValue().messages.isEmpty()) continue;
+                    try {
+                        spill(stripe, entry.getKey(), entry.getValue(), null);
+                    } catch (IOException e) {
+                        System.out.println("[Server] IO exception, the messages of " + entry.getKey() + " are lost: " + e);
+                    }
+                }
+                closeFile(stripe);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    long getMemoryBytes() {
+        return memoryBytes.get();
+    }
+
+    long getStored() {
+        return stored.sum();
+    }
+
+    long getSpilled() {
+        return spilled.sum();
+    }
+
+    long getDelivered() {
+        return delivered.sum();
+    }
+
+    /* The box of the user, the size of its file is read once, when the user gets a box. Called with the lock held */
+    private Box box(Stripe stripe, String user) throws IOException {
+        Box box = stripe.boxes.get(user);
+        if (box == null) {
+            box = new Box();
+            Path file = fileOf(user);
+            if (Files.exists(file)) {
+                box.fileBytes = Files.size(file);
+            }
+            stripe.boxes.put(user, box);
+        }
+        return box;
+    }
+
+    /* Drops the box of a user with nothing in memory and no delivery, called with the lock held */
+    private void release(Stripe stripe, String user, Box box) {
+        if (!box.delivering && box.messages.isEmpty()) {
+            stripe.boxes.remove(user);
+        }
+    }
+
+    /*
+     * Appends the messages in memory of the user then message (if not null) to its file, called with the lock held.
+     * The file stays open for the next messages of the user, until the stripe appends to the file of another one.
+     */
+    private void spill(Stripe stripe, String user, Box box, String message) throws IOException {
+        if (!user.equals(stripe.openUser)) {
+            closeFile(stripe);
+            Files.createDirectories(dir);
+            stripe.openFile = new BufferedOutputStream(Files.newOutputStream(fileOf(user),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+            stripe.openUser = user;
+        }
+        long written = 0;
+        for (String queued : box.messages) {
+            written += writeLine(stripe.openFile, queued);
+        }
+        if (message != null) {
+            written += writeLine(stripe.openFile, message);
+        }
+        stripe.openFile.flush();
+        box.fileBytes = Math.max(box.fileBytes, 0) + written;
+        spilled.add(box.messages.size() + (message != null ? 1 : 0));
+        memoryBytes.addAndGet(-box.bytes);
+        box.messages.clear();
+        box.bytes = 0;
+    }
+
+    /*
+     * Replaces the file of the user by the messages not delivered, then what was appended after the first skipped
+     * bytes, then the messages in memory so that the next ones follow in the file. Called with the lock held.
+     */
+    private void rewrite(Stripe stripe, String user, Box box, List<String> rest, long skipped) throws IOException {
+        if (user.equals(stripe.openUser)) closeFile(stripe);
+        Files.createDirectories(dir);
+        Path file = fileOf(user);
+        Path rewritten = file.resolveSibling(file.getFileName() + ".tmp");
+        long written = 0;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(rewritten))) {
+            for (String message : rest) {
+                written += writeLine(out, message);
+            }
+            if (box.fileBytes > skipped) {
+                try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                    WritableByteChannel target = Channels.newChannel(out);
+                    for (long position = skipped; position < box.fileBytes; ) {
+                        long transferred = in.transferTo(position, box.fileBytes - position, target);
+                        if (transferred <= 0) throw new IOException("Inbox file " + file + " is truncated");
+                        position += transferred;
+                        written += transferred;
+                    }
+                }
+            }
+            for (String message : box.messages) {
+                written += writeLine(out, message);
+            }
+        }
+        spilled.add(box.messages.size());
+        memoryBytes.addAndGet(-box.bytes);
+        box.messages.clear();
+        box.bytes = 0;
+        if (written == 0) {
+            Files.delete(rewritten);
+            Files.deleteIfExists(file);
+            box.fileBytes = -1;
+            return;
+        }
+        Files.move(rewritten, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        box.fileBytes = written;
+    }
+
+    private static long writeLine(OutputStream out, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        out.write('\n');
+        return bytes.length + 1;
+    }
+
+    /* Called with the lock held */
+    private void closeFile(Stripe stripe) {
+        if (stripe.openFile == null) return;
+        try {
+            stripe.openFile.close();
+        } catch (IOException e) {
+            System.out.println("[Server] IO exception: " + e);
+        }
+        stripe.openFile = null;
+        stripe.openUser = null;
+    }
+
+    private Stripe stripeOf(String user) {
+        return stripes[Math.floorMod(user.hashCode(), STRIPES)];
+    }
+
+    /* A username may hold any character, the ones that are not safe in a file name are written %XX */
+    private Path fileOf(String user) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : user.getBytes(StandardCharsets.UTF_8)) {
+            if (b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9' || b == '-' || b == '_') {
+                name.append((char) b);
+            } else {
+                name.append('%').append(String.format("%02X", b & 0xFF));
+            }
+        }
+        return dir.resolve(name + ".txt");
+    }
+
+    /* Heap of a queued message: its characters and the String around them */
+    private static long sizeOf(String message) {
+        return 2L * message.length() + 48;
+    }
+}
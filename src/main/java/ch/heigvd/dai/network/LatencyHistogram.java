@@ -0,0 +1,65 @@
+package ch.heigvd.dai.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Latencies in nanoseconds counted in log-linear buckets: exact below 128 ns, then 64 buckets per power of two,
+ * so a percentile is within about 1.5% of the recorded value. Recording is lock-free and allocates nothing,
+ * any number of threads can record at the same time: one increment of the bucket, the maximum is only written
+ * when it grows. Reading sums the buckets, it is meant for reports and not for every event.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 64; // per power of two
+    private static final int SUB_BUCKET_BITS = 6;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS + 2 * SUB_BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /* Smallest recorded value such that a fraction p (0 to 1) of the values are below or equal, 0 if nothing was recorded */
+    long percentile(double p) {
+        long total = count();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(valueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    private static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; // value >>> shift is in [64, 128)
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /* Middle of the bucket */
+    private static long valueOf(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long sub = index - ((long) shift << SUB_BUCKET_BITS);
+        return (sub << shift) + ((1L << shift) >> 1);
+    }
+}
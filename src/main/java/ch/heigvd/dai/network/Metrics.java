@@ -0,0 +1,67 @@
+package ch.heigvd.dai.network;
+
+import ch.heigvd.dai.util.ClientCommand;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counters and latencies of the server, cheap enough to stay on: a request costs two reads of the clock and
+ * the increment of one histogram bucket, without lock nor allocation. The gauges (sessions, queues, groups)
+ * are not recorded, the server reads them from its state when the stats are asked.
+ *
+ * The stats are "<name> <value>" pairs, the latencies in microseconds.
+ */
+final class Metrics {
+    private static final ClientCommand[] COMMANDS = ClientCommand.values();
+
+    private final LatencyHistogram[] requests = new LatencyHistogram[COMMANDS.length];
+    private final LongAdder[] errors = new LongAdder[COMMANDS.length];
+    private final LatencyHistogram historyAppend = new LatencyHistogram(); // queued by the sender to written
+    private final LatencyHistogram historyRead = new LatencyHistogram(); // one part of a HISTORY, cache or store
+
+    Metrics() {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            requests[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+        }
+    }
+
+    /* Time from the decoded request to its response queued, HISTORY and EXPORT only queue their stream */
+    void onRequest(ClientCommand command, long nanos) {
+        requests[command.ordinal()].record(nanos);
+    }
+
+    void onError(ClientCommand command) {
+        if (command != null) errors[command.ordinal()].increment();
+    }
+
+    LatencyHistogram historyAppend() {
+        return historyAppend;
+    }
+
+    LatencyHistogram historyRead() {
+        return historyRead;
+    }
+
+    /* Adds the counters and the percentiles of the latencies to stats, the commands never received are left out */
+    void addTo(Map<String, Long> stats) {
+        for (ClientCommand command : COMMANDS) {
+            LatencyHistogram histogram = requests[command.ordinal()];
+            if (histogram.count() == 0) continue;
+            String name = "command." + command.name().toLowerCase();
+            addLatencies(stats, name, histogram);
+            stats.put(name + ".errors", errors[command.ordinal()].sum());
+        }
+        addLatencies(stats, "history.append", historyAppend);
+        addLatencies(stats, "history.read", historyRead);
+    }
+
+    private static void addLatencies(Map<String, Long> stats, String name, LatencyHistogram histogram) {
+        stats.put(name + ".count", histogram.count());
+        stats.put(name + ".p50_us", histogram.percentile(0.50) / 1000);
+        stats.put(name + ".p99_us", histogram.percentile(0.99) / 1000);
+        stats.put(name + ".p999_us", histogram.percentile(0.999) / 1000);
+        stats.put(name + ".max_us", histogram.max() / 1000);
+    }
+}
@@ -0,0 +1,371 @@
+package ch.heigvd.dai.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/*
+ * Server mode where a fixed number of selector event loops serve every client.
+ * The accept loop runs on the calling thread and hands each new channel to an event loop (round robin).
+ * Each event loop reads the available bytes and gives them to the CommandDecoder of the connection.
+ * Nothing is allocated for an idle connection apart from its channel, its key and its NioConnection.
+ * With --flush-delay a connection is flushed when the delay expires, unless it has nothing left to read before:
+ * the selector wait is bounded by the next deadline, so the delay is rounded up to the millisecond.
+ */
+class NioServer {
+    public static final int READ_BUFFER_SIZE = 64 * 1024;
+    public static final int WRITE_BATCH_SIZE = 16; // frames per gathering write
+
+    private final Server server;
+    private final int port;
+    private final int backlog;
+    private final EventLoop[] eventLoops;
+    private final long flushDelay; // nanoseconds
+
+    NioServer(Server server, int port, int backlog, int threads) {
+        this.server = server;
+        this.port = port;
+        this.backlog = backlog;
+        this.eventLoops = new EventLoop[threads];
+        this.flushDelay = server.flushDelayNanos();
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+            Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            eventLoops[i].thread = thread;
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), backlog);
+            System.out.println("[Server] Listening on port " + port + " (NIO, " + eventLoops.length + " event loops)");
+
+            int next = 0;
+            while (serverChannel.isOpen()) {
+                server.acquireSession();
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept(); // blocking
+                } catch (IOException e) {
+                    server.releaseSession();
+                    throw e;
+                }
+                if (!server.admit()) {
+                    channel.close();
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+            System.out.println("[Server] Closing connection");
+        }
+    }
+
+    /* A flush waiting for its deadline, ignored if the connection was flushed in the meantime */
+    private record DelayedFlush(NioConnection connection, long deadline) {
+    }
+
+    class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Same delay for every connection, so the deadlines are in increasing order
+        private final ArrayDeque<DelayedFlush> delayedFlushes = new ArrayDeque<>();
+        // Shared by all the connections of this loop, only the unfinished lines are copied per connection
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private Thread thread;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /* Runs the task on the event loop thread, can be called from any thread */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    NioConnection connection = new NioConnection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    server.onConnect(connection);
+                } catch (IOException e) {
+                    server.releaseSession();
+                    System.out.println("[Server] exception: " + e);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    DelayedFlush next = delayedFlushes.peek();
+                    if (next == null) {
+                        selector.select();
+                    } else {
+                        long wait = next.deadline() - System.nanoTime();
+                        if (wait <= 0) {
+                            selector.selectNow();
+                        } else {
+                            selector.select((wait + 999_999) / 1_000_000);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flushOutbound();
+                        }
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    long now = System.nanoTime();
+                    while ((next = delayedFlushes.peek()) != null && next.deadline() - now <= 0) {
+                        delayedFlushes.poll();
+                        if (next.connection().flushDeadline == next.deadline()) {
+                            next.connection().flushOutbound();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("[Server] exception: " + e);
+                }
+            }
+        }
+    }
+
+    class NioConnection extends Connection {
+        private final SocketChannel channel;
+        private final EventLoop eventLoop;
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private SelectionKey key;
+        // Frames handed to one gathering write, the ones left after a partial write stay at the front
+        private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+        private int writeBatchLength;
+        private final CommandDecoder decoder;
+        private long flushDeadline; // event loop only, 0 when no delayed flush is pending
+        // Bytes read but not processed while the responses are written, reading stops until they are processed
+        private ByteBuffer pendingInput;
+        private boolean feeding;
+        private boolean awaiting; // an operation of another thread must complete before the next request
+
+        NioConnection(SocketChannel channel, EventLoop eventLoop) throws IOException {
+            super(addressOf(channel), server);
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            this.decoder = new CommandDecoder(server, this);
+        }
+
+        @Override
+        protected void onWritePending() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                eventLoop.execute(flushDelay == 0 ? this::flushOutbound : this::scheduleFlush);
+            }
+        }
+
+        private void scheduleFlush() {
+            if (flushDeadline != 0 || isClosed() || !writeScheduled.get()) return; // Already flushed
+            flushDeadline = System.nanoTime() + flushDelay;
+            if (flushDeadline == 0) flushDeadline = 1;
+            eventLoop.delayedFlushes.add(new DelayedFlush(this, flushDeadline));
+        }
+
+        @Override
+        protected long transferTo(FileChannel file, long position, long count) throws IOException {
+            return file.transferTo(position, count, channel);
+        }
+
+        @Override
+        protected void writeDirect(ByteBuffer bytes) throws IOException {
+            channel.write(bytes);
+        }
+
+        @Override
+        protected void onClose() {
+            eventLoop.execute(() -> {
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.out.println("[Server] exception: " + e);
+                }
+                server.onDisconnect(this);
+            });
+        }
+
+        private void onReadable() {
+            if (pendingInput != null || awaiting) return; // paused, the interest in OP_READ is being removed
+            ByteBuffer buffer = eventLoop.readBuffer;
+            buffer.clear();
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) { // Client disconnected
+                close();
+                return;
+            }
+
+            if (feed(buffer.array(), 0, read) && read < buffer.capacity()) { // Everything sent by the client so far was read
+                onReadIdle();
+            }
+        }
+
+        /* Processes [from, to), keeps what is left if the decoder paused, returns true if everything was processed */
+        private boolean feed(byte[] bytes, int from, int to) {
+            int stopped;
+            feeding = true;
+            try {
+                stopped = decoder.feed(bytes, from, to);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("[Server] exception: " + e);
+                close();
+                return false;
+            } finally {
+                feeding = false;
+            }
+            if (stopped == to || isClosed()) return true;
+            if (pendingInput == null) {
+                pendingInput = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+            pendingInput.clear();
+            pendingInput.put(bytes, stopped, to - stopped).flip();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            return false;
+        }
+
+        /* Stops reading until the operation completes, then reads again after running then on the event loop */
+        @Override
+        protected <T> void await(CompletableFuture<T> operation, Consumer<T> then) {
+            awaiting = true;
+            key.interestOps(readInterest() | (key.interestOps() & SelectionKey.OP_WRITE));
+            operation.whenComplete((result, e) -> eventLoop.execute(() -> {
+                awaiting = false;
+                then.accept(result); // Also when the client left, to release what the operation holds
+                if (isClosed()) return;
+                if (pendingInput != null) {
+                    resumeInput();
+                } else if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            }));
+        }
+
+        /* Processes the bytes kept by a pause once the responses are written, then reads again */
+        private void resumeInput() {
+            ByteBuffer pending = pendingInput;
+            byte[] bytes = new byte[pending.remaining()];
+            pending.get(bytes);
+            pendingInput = null;
+            if (feed(bytes, 0, bytes.length) && key.isValid() && !awaiting) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                onReadIdle();
+            }
+        }
+
+        /* Writes the responses inline once the queue is half full, pauses if the socket does not take them */
+        @Override
+        protected boolean pauseReading() {
+            if (awaiting) return true;
+            if (getOutboundDepth() < Math.max(1, server.OUTBOUND_QUEUE_SIZE / 2)) return false;
+            flushOutbound();
+            return isTransferring() || writeBatchLength > 0 || getOutboundDepth() >= Math.max(1, server.OUTBOUND_QUEUE_SIZE / 2);
+        }
+
+        @Override
+        protected void onReadIdle() {
+            if (flushDelay > 0 && writeScheduled.get()) {
+                flushOutbound();
+            }
+        }
+
+        /* No interest in OP_READ while the bytes of a pause are not processed or an operation is awaited */
+        private int readInterest() {
+            return pendingInput == null && !awaiting ? SelectionKey.OP_READ : 0;
+        }
+
+        private void flushOutbound() {
+            flushDeadline = 0;
+            if (isClosed()) return;
+            try {
+                while (true) {
+                    if (writeBatchLength == 0 && isTransferring()) { // The rest of a file region goes before the queued lines
+                        resumeStreams();
+                        if (isTransferring()) { // Socket buffer is full, wait for OP_WRITE
+                            key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                    }
+                    Frame frame;
+                    while (writeBatchLength < WRITE_BATCH_SIZE && (frame = pollOutbound()) != null) {
+                        if (frame.size() > 0) {
+                            writeBatch[writeBatchLength++] = frame.buffer();
+                        }
+                    }
+                    if (writeBatchLength == 0) {
+                        if (resumeStreams()) continue;
+                        break;
+                    }
+
+                    channel.write(writeBatch, 0, writeBatchLength);
+                    int written = 0;
+                    while (written < writeBatchLength && !writeBatch[written].hasRemaining()) {
+                        written++;
+                    }
+                    server.onFlush(written);
+                    System.arraycopy(writeBatch, written, writeBatch, 0, writeBatchLength - written);
+                    Arrays.fill(writeBatch, writeBatchLength - written, writeBatchLength, null);
+                    writeBatchLength -= written;
+                    if (writeBatchLength > 0) { // Socket buffer is full, wait for OP_WRITE
+                        key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(readInterest());
+                writeScheduled.set(false);
+                // A line may have been queued between the last poll and the reset of the flag
+                if (getOutboundDepth() > 0) {
+                    onWritePending();
+                }
+                if (pendingInput != null && !feeding && !awaiting) {
+                    resumeInput();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+    }
+
+    private static String addressOf(SocketChannel channel) throws IOException {
+        InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+        return remote.getAddress().getHostAddress() + ":" + remote.getPort();
+    }
+}
@@ -0,0 +1,418 @@
+package ch.heigvd.dai.network;
+
+import ch.heigvd.dai.util.ClientCommand;
+import ch.heigvd.dai.util.ServerCommand;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Encoding used by a connection. TEXT is the line protocol of doc/application_protocol.md.
+ * BINARY is chosen by a client that starts the connection with the bytes BINARY_MAGIC, BINARY_VERSION:
+ *
+ *   frame  = varint length of what follows, opcode (1 byte), [varint tag if the TAGGED bit is set], fields
+ *   opcode = ordinal + 1 of the ClientCommand or ServerCommand, USER_OPCODE for a user announcement
+ *   fields = numbers as varints, strings as a varint length followed by the UTF-8 bytes
+ *
+ * Groups are sent as their id (index in the group table). Users are sent as the id given at JOIN,
+ * the server announces a user with a USER frame the first time it sends its id to a connection.
+ */
+enum Protocol {
+    TEXT {
+        @Override
+        Frame ok(long tag, long id) {
+            return tag < 0 ? OK_LINE : line(tag, ServerCommand.OK.toString());
+        }
+
+        @Override
+        Frame error(long tag, int code) {
+            return line(tag, ServerCommand.ERROR + " " + code);
+        }
+
+        @Override
+        Frame receivePrivate(User sender, String message) {
+            return line(ServerCommand.RECEIVE_PRIVATE + " " + sender.getName() + " " + message);
+        }
+
+        @Override
+        Frame receiveGroup(String group, User sender, String message) {
+            return line(ServerCommand.RECEIVE_GROUP + " " + group + " " + sender.getName() + " " + message);
+        }
+
+        @Override
+        Frame historyEntry(long tag, long sequence, String message) {
+            return line(tag, ServerCommand.HISTORY_ENTRY + " " + sequence + " " + message);
+        }
+
+        @Override
+        Frame historyEnd(long tag, long count) {
+            return line(tag, ServerCommand.HISTORY_END + " " + count);
+        }
+
+        @Override
+        Frame export(long tag, long from, long messages, long bytes) {
+            return line(tag, ServerCommand.EXPORT + " " + from + " " + messages + " " + bytes);
+        }
+
+        @Override
+        Frame listGroups(long tag, List<String> groups) {
+            StringBuilder response = new StringBuilder();
+            for (String group : groups) {
+                response.append(group).append(" ");
+            }
+            return line(tag, ServerCommand.LIST_GROUPS + " " + response);
+        }
+
+        @Override
+        Frame listUsers(long tag, Collection<User> users) {
+            StringBuilder response = new StringBuilder();
+            for (User user : users) {
+                response.append(user.getName()).append(" ");
+            }
+            return line(tag, ServerCommand.LIST_USERS + " " + response);
+        }
+
+        @Override
+        Frame batchResult(long tag, int[] codes) {
+            StringBuilder response = new StringBuilder(ServerCommand.BATCH_RESULT + " " + codes.length);
+            for (int code : codes) {
+                response.append(" ").append(code);
+            }
+            return line(tag, response.toString());
+        }
+
+        @Override
+        Frame historyChunk(long tag, byte[] compressed) {
+            byte[] header = (tagged(tag, ServerCommand.HISTORY_CHUNK + " " + compressed.length) + END_OF_LINE)
+                    .getBytes(StandardCharsets.UTF_8);
+            byte[] chunk = Arrays.copyOf(header, header.length + compressed.length);
+            System.arraycopy(compressed, 0, chunk, header.length, compressed.length);
+            return Frame.wrap(chunk);
+        }
+
+        @Override
+        Frame stats(long tag, Map<String, Long> stats) {
+            StringBuilder response = new StringBuilder(ServerCommand.STATS.name());
+            for (Map.Entry<String, Long> stat : stats.entrySet()) {
+                response.append(" ").append(stat.getKey()).append("=").append(stat.getValue());
+            }
+            return line(tag, response.toString());
+        }
+    },
+
+    BINARY {
+        @Override
+        Frame ok(long tag, long id) {
+            if (tag < 0 && id < 0) return OK_FRAME;
+            Encoder encoder = new Encoder(ServerCommand.OK, tag);
+            return id < 0 ? encoder.frame() : encoder.varint(id).frame();
+        }
+
+        @Override
+        Frame error(long tag, int code) {
+            return new Encoder(ServerCommand.ERROR, tag).varint(code).frame();
+        }
+
+        @Override
+        Frame receivePrivate(User sender, String message) {
+            return new Encoder(ServerCommand.RECEIVE_PRIVATE).varint(sender.getId()).string(message).frame();
+        }
+
+        @Override
+        Frame receiveGroup(String group, User sender, String message) {
+            return new Encoder(ServerCommand.RECEIVE_GROUP)
+                    .varint(User.getGroupId(group)).varint(sender.getId()).string(message).frame();
+        }
+
+        @Override
+        Frame historyEntry(long tag, long sequence, String message) {
+            // The history keeps "<sender> <message>"
+            int space = message.indexOf(' ');
+            String sender = space < 0 ? message : message.substring(0, space);
+            String text = space < 0 ? "" : message.substring(space + 1);
+            return new Encoder(ServerCommand.HISTORY_ENTRY, tag).varint(sequence).string(sender).string(text).frame();
+        }
+
+        @Override
+        Frame historyEnd(long tag, long count) {
+            return new Encoder(ServerCommand.HISTORY_END, tag).varint(count).frame();
+        }
+
+        @Override
+        Frame export(long tag, long from, long messages, long bytes) {
+            return new Encoder(ServerCommand.EXPORT, tag).varint(from).varint(messages).varint(bytes).frame();
+        }
+
+        @Override
+        Frame listGroups(long tag, List<String> groups) {
+            Encoder encoder = new Encoder(ServerCommand.LIST_GROUPS, tag).varint(groups.size());
+            for (String group : groups) {
+                encoder.varint(User.getGroupId(group)).string(group);
+            }
+            return encoder.frame();
+        }
+
+        @Override
+        Frame listUsers(long tag, Collection<User> users) {
+            Encoder encoder = new Encoder(ServerCommand.LIST_USERS, tag).varint(users.size());
+            for (User user : users) {
+                encoder.varint(user.getId()).string(user.getName());
+            }
+            return encoder.frame();
+        }
+
+        @Override
+        Frame batchResult(long tag, int[] codes) {
+            Encoder encoder = new Encoder(ServerCommand.BATCH_RESULT, tag).varint(codes.length);
+            for (int code : codes) {
+                encoder.varint(code);
+            }
+            return encoder.frame();
+        }
+
+        @Override
+        Frame historyChunk(long tag, byte[] compressed) {
+            return new Encoder(ServerCommand.HISTORY_CHUNK, tag).blob(compressed).frame();
+        }
+
+        @Override
+        Frame stats(long tag, Map<String, Long> stats) {
+            Encoder encoder = new Encoder(ServerCommand.STATS, tag).varint(stats.size());
+            for (Map.Entry<String, Long> stat : stats.entrySet()) {
+                encoder.string(stat.getKey()).varint(stat.getValue());
+            }
+            return encoder.frame();
+        }
+
+        @Override
+        void announce(Connection connection, User user) {
+            if (connection.isAnnounced(user.getId())) return;
+            // Written before the id is marked as known, another sender may announce it twice but never not at all
+            connection.write(new Encoder(USER_OPCODE).varint(user.getId()).string(user.getName()).frame());
+            connection.setAnnounced(user.getId());
+        }
+    };
+
+    public static final int BINARY_MAGIC = 0xB7; // never the first byte of a text command
+    public static final int BINARY_VERSION = 1;
+    public static final int USER_OPCODE = 0x7F;
+    public static final int TAGGED = 0x80; // opcode bit, a varint request tag follows the opcode
+    public static final long NO_TAG = -1;
+
+    // HISTORY and EXPORT in binary: group id, one of these modes, then from and count or count
+    public static final int RANGE_ALL = 0;
+    public static final int RANGE_FROM = 1;
+    public static final int RANGE_LAST = 2;
+
+    private static final String END_OF_LINE = "\n";
+    private static final Frame OK_LINE = Frame.of(ServerCommand.OK + END_OF_LINE);
+    private static final Frame OK_FRAME = new Encoder(ServerCommand.OK).frame();
+    private static final ClientCommand[] CLIENT_COMMANDS = ClientCommand.values();
+
+    /*
+     * The responses echo the tag of the request they answer, NO_TAG if the request had none.
+     * TEXT prefixes the line with "#<tag> ", BINARY sets the TAGGED bit of the opcode.
+     */
+
+    /* OK carrying the id given to the user (JOIN) or to the group (PARTICIPATE), ignored by TEXT */
+    abstract Frame ok(long tag, long id);
+
+    Frame ok(long tag) {
+        return ok(tag, -1);
+    }
+
+    abstract Frame error(long tag, int code);
+
+    abstract Frame receivePrivate(User sender, String message);
+
+    abstract Frame receiveGroup(String group, User sender, String message);
+
+    abstract Frame historyEntry(long tag, long sequence, String message);
+
+    abstract Frame historyEnd(long tag, long count);
+
+    /* Header of an EXPORT, the stored lines follow as they are in both encodings */
+    abstract Frame export(long tag, long from, long messages, long bytes);
+
+    /* One page of the groups, at most Server.LIST_GROUPS_PAGE_SIZE */
+    abstract Frame listGroups(long tag, List<String> groups);
+
+    abstract Frame listUsers(long tag, Collection<User> users);
+
+    /* One code per item of a BATCH, 0 for the items that were sent */
+    abstract Frame batchResult(long tag, int[] codes);
+
+    /*
+     * HISTORY_ENTRY frames without tag deflated together (zlib format), sent instead of them after COMPRESS.
+     * TEXT sends the size on the HISTORY_CHUNK line then the compressed bytes, BINARY sends them as one field.
+     */
+    abstract Frame historyChunk(long tag, byte[] compressed);
+
+    /* Counters and gauges of the server as "<name> <value>" pairs, TEXT writes them as name=value on one line */
+    abstract Frame stats(long tag, Map<String, Long> stats);
+
+    /* Called before a frame holding the id of the user is written to the connection */
+    void announce(Connection connection, User user) {
+    }
+
+    static ClientCommand clientCommandOf(int opcode) {
+        return opcode >= 1 && opcode <= CLIENT_COMMANDS.length ? CLIENT_COMMANDS[opcode - 1] : null;
+    }
+
+    static int opcodeOf(ClientCommand command) {
+        return command.ordinal() + 1;
+    }
+
+    static int opcodeOf(ServerCommand command) {
+        return command.ordinal() + 1;
+    }
+
+    private static Frame line(String line) {
+        return Frame.of(line + END_OF_LINE);
+    }
+
+    private static Frame line(long tag, String line) {
+        return line(tagged(tag, line));
+    }
+
+    private static String tagged(long tag, String line) {
+        return tag < 0 ? line : "#" + tag + " " + line;
+    }
+
+    /* Builds one binary frame, also used by the client for its requests */
+    static final class Encoder {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(32);
+
+        Encoder(ServerCommand command) {
+            this(opcodeOf(command));
+        }
+
+        /* Response to a request, tagged unless tag is NO_TAG */
+        Encoder(ServerCommand command, long tag) {
+            this(tag < 0 ? opcodeOf(command) : opcodeOf(command) | TAGGED);
+            if (tag >= 0) varint(tag);
+        }
+
+        Encoder(ClientCommand command) {
+            this(opcodeOf(command));
+        }
+
+        Encoder(ClientCommand command, long tag) {
+            this(tag < 0 ? opcodeOf(command) : opcodeOf(command) | TAGGED);
+            if (tag >= 0) varint(tag);
+        }
+
+        Encoder(int opcode) {
+            body.write(opcode);
+        }
+
+        Encoder varint(long value) {
+            writeVarint(body, value);
+            return this;
+        }
+
+        Encoder string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(body, bytes.length);
+            body.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        /* Bytes as a varint length followed by the bytes */
+        Encoder blob(byte[] value) {
+            writeVarint(body, value.length);
+            body.write(value, 0, value.length);
+            return this;
+        }
+
+        Encoder raw(int b) {
+            body.write(b);
+            return this;
+        }
+
+        byte[] bytes() {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 2);
+            writeVarint(frame, body.size());
+            frame.writeBytes(body.toByteArray());
+            return frame.toByteArray();
+        }
+
+        Frame frame() {
+            return Frame.wrap(bytes());
+        }
+
+        private static void writeVarint(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+
+    /* Reads the fields of one binary frame, used by the client for the responses */
+    static final class Decoder {
+        private final byte[] body;
+        private int position;
+
+        private Decoder(byte[] body) {
+            this.body = body;
+        }
+
+        /* Reads the next frame, null once the stream is closed */
+        static Decoder read(InputStream in) throws IOException {
+            long length = readVarint(in);
+            if (length < 0) return null;
+            return new Decoder(in.readNBytes((int) length));
+        }
+
+        int opcode() {
+            return body[position++] & 0xFF;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = body[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            return value;
+        }
+
+        String string() {
+            int length = (int) varint();
+            String value = new String(body, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        byte[] blob() {
+            int length = (int) varint();
+            byte[] value = Arrays.copyOfRange(body, position, position + length);
+            position += length;
+            return value;
+        }
+
+        boolean hasRemaining() {
+            return position < body.length;
+        }
+
+        private static long readVarint(InputStream in) throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0) return -1;
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package ch.heigvd.dai.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Token bucket of rate tokens per second holding at most one second of tokens, without lock.
+ * Its whole state is the time at which the bucket is full again: taking tokens moves that time forward by their
+ * cost with one compare-and-set, and is refused when it would move it more than a second after now.
+ * A bucket is mostly used by the reader of one connection, so the compare-and-set almost never retries.
+ */
+final class RateLimiter {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long rate;
+    private final AtomicLong fullAt;
+
+    private RateLimiter(long rate) {
+        this.rate = rate;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /* null when rate is 0, there is then no limit */
+    static RateLimiter of(long rate) {
+        return rate > 0 ? new RateLimiter(rate) : null;
+    }
+
+    /* Takes tokens if the bucket holds them, a refused request takes nothing */
+    boolean tryAcquire(long tokens) {
+        long cost = tokens * NANOS_PER_SECOND / rate;
+        long now = System.nanoTime();
+        while (true) {
+            long full = fullAt.get();
+            long next = Math.max(full, now) + cost;
+            if (next - now > NANOS_PER_SECOND) return false;
+            if (fullAt.compareAndSet(full, next)) return true;
+        }
+    }
+
+    /* true if limiter is null or has the tokens */
+    static boolean allows(RateLimiter limiter, long tokens) {
+        return limiter == null || limiter.tryAcquire(tokens);
+    }
+}
@@ -0,0 +1,293 @@
+package ch.heigvd.dai.network;
+
+import ch.heigvd.dai.util.ClientCommand;
+
+import java.nio.charset.StandardCharsets;
+
+/*
+ * One line or binary frame received from a client, parsed in place by CommandDecoder.
+ * The arguments are slices of the received bytes, a String is only created when a process method asks for one.
+ * A binary frame is presented with the arguments of the equivalent text line, so the process methods
+ * do not depend on the protocol: group ids become the group name, numbers are kept as numbers.
+ * A request may start with a tag ("#<tag> " in text, the TAGGED opcode bit in binary) that the responses echo,
+ * so a client can send the next requests before the first response came back.
+ * The same instance is reused for every line of a connection, it is only valid until the next line is decoded.
+ */
+final class Request {
+    private static final int MAX_TOKENS = 4; // positions kept, the tokens after are only counted
+    private static final byte SLICE = 0;
+    private static final byte TEXT = 1;
+    private static final byte NUMBER = 2;
+    private static final byte TAG_PREFIX = '#';
+    private static final int MAX_TAG_DIGITS = 18;
+
+    private ClientCommand command;
+    private long tag;
+    private byte[] bytes;
+    private int start;
+    private int end;
+    private boolean binary;
+    private final int[] tokenStarts = new int[MAX_TOKENS];
+    private final int[] tokenEnds = new int[MAX_TOKENS];
+    private final byte[] tokenKinds = new byte[MAX_TOKENS];
+    private final String[] texts = new String[MAX_TOKENS];
+    private final long[] numbers = new long[MAX_TOKENS];
+    private int tokenCount;
+    private int position; // binary decoding
+
+    /* Parses the line [from, to) without its END_OF_LINE, returns false if the command is unknown */
+    boolean decode(byte[] bytes, int from, int to) {
+        if (to > from && bytes[to - 1] == '\r') to--;
+        int first = from;
+        tag = Protocol.NO_TAG;
+        if (from < to && bytes[from] == TAG_PREFIX) {
+            int tagEnd = tagEnd(bytes, from, to);
+            if (tagEnd < 0) return false;
+            tag = parseLong(bytes, from + 1, tagEnd);
+            from = tagEnd + 1;
+        }
+        int commandEnd = from;
+        while (commandEnd < to && bytes[commandEnd] != ' ') {
+            commandEnd++;
+        }
+        command = CommandDecoder.commandOf(bytes, from, commandEnd);
+        if (command == null) return false;
+
+        this.bytes = bytes;
+        this.start = first;
+        this.end = to;
+        binary = false;
+        tokenCount = 0;
+        int position = commandEnd + 1;
+        while (position <= to) {
+            int tokenEnd = position;
+            while (tokenEnd < to && bytes[tokenEnd] != ' ') {
+                tokenEnd++;
+            }
+            if (tokenCount < MAX_TOKENS) {
+                addSlice(position, tokenEnd);
+            } else {
+                tokenCount++;
+            }
+            position = tokenEnd + 1;
+        }
+        return true;
+    }
+
+    /*
+     * Parses the binary frame [from, to) starting at its opcode, returns false if it is unknown or malformed.
+     * A frame must not give a request that no text line gives: a string holding an end of line, or a user or
+     * group name holding a space, is malformed.
+     */
+    boolean decodeBinary(byte[] bytes, int from, int to) {
+        int opcode = bytes[from] & 0xFF;
+        command = Protocol.clientCommandOf(opcode & ~Protocol.TAGGED);
+        if (command == null) return false;
+
+        this.bytes = bytes;
+        this.start = from;
+        this.end = to;
+        binary = true;
+        tokenCount = 0;
+        position = from + 1;
+        tag = (opcode & Protocol.TAGGED) != 0 ? readVarint() : Protocol.NO_TAG;
+        switch (command) {
+            case JOIN, PARTICIPATE -> readName();
+            case SEND_PRIVATE -> {
+                readName();
+                readText();
+            }
+            case SEND_GROUP -> {
+                readGroup();
+                readText();
+            }
+            case HISTORY, EXPORT -> {
+                readGroup();
+                int mode = position < end ? bytes[position++] : -1;
+                if (mode == Protocol.RANGE_FROM) {
+                    addNumber(readVarint());
+                    addNumber(readVarint());
+                } else if (mode == Protocol.RANGE_LAST) {
+                    addText("LAST");
+                    addNumber(readVarint());
+                } else if (mode != Protocol.RANGE_ALL) {
+                    return false;
+                }
+            }
+            case BATCH -> addNumber(readVarint());
+            case CREATE_GROUP, DELETE_GROUP -> readName();
+            case LIST_GROUPS -> { // the name after which the page starts, absent for the first page
+                if (position < end) readName();
+            }
+            case LIST_USERS, COMPRESS, STATS -> {
+            }
+        }
+        return position == end;
+    }
+
+    public ClientCommand command() {
+        return command;
+    }
+
+    /* Tag given by the client to match the responses to this request, Protocol.NO_TAG if there is none */
+    public long tag() {
+        return tag;
+    }
+
+    /* Bytes received for the request, its tag included and without the end of line */
+    public int length() {
+        return end - start;
+    }
+
+    /* End of the "#<tag>" that starts at from, -1 if it is not a tag followed by a space */
+    static int tagEnd(byte[] bytes, int from, int to) {
+        int i = from + 1;
+        while (i < to && i - from <= MAX_TAG_DIGITS && bytes[i] >= '0' && bytes[i] <= '9') {
+            i++;
+        }
+        return i > from + 1 && i < to && bytes[i] == ' ' ? i : -1;
+    }
+
+    /* Parses the tag digits checked by tagEnd */
+    static long parseLong(byte[] bytes, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = value * 10 + (bytes[i] - '0');
+        }
+        return value;
+    }
+
+    /* Number of space separated arguments after the command */
+    public int argumentCount() {
+        return tokenCount;
+    }
+
+    public String argument(int index) {
+        return switch (tokenKinds[index]) {
+            case TEXT -> texts[index];
+            case NUMBER -> Long.toString(numbers[index]);
+            default -> decode(tokenStarts[index], tokenEnds[index]);
+        };
+    }
+
+    /* The argument and everything after it, for the text of a message (a binary field is already the whole text) */
+    public String rest(int index) {
+        if (binary || tokenKinds[index] != SLICE) return argument(index);
+        return decode(tokenStarts[index], end);
+    }
+
+    /* Length of rest(index) in UTF-16 chars (as String.length), counted on the bytes */
+    public int restLength(int index) {
+        if (tokenKinds[index] != SLICE) return argument(index).length();
+        int length = 0;
+        int restEnd = binary ? tokenEnds[index] : end;
+        for (int i = tokenStarts[index]; i < restEnd; i++) {
+            int b = bytes[i] & 0xFF;
+            if ((b & 0xC0) != 0x80) length++; // first byte of a character
+            if ((b & 0xF8) == 0xF0) length++; // 4 bytes characters are surrogate pairs
+        }
+        return length;
+    }
+
+    /* True if the argument is the given ASCII token */
+    public boolean argumentIs(int index, String token) {
+        if (tokenKinds[index] != SLICE) return token.equals(argument(index));
+        int start = tokenStarts[index];
+        if (tokenEnds[index] - start != token.length()) return false;
+        for (int i = 0; i < token.length(); i++) {
+            if (bytes[start + i] != token.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /* Parses a decimal argument, as Long.parseLong */
+    public long longArgument(int index) {
+        if (tokenKinds[index] == NUMBER) return numbers[index];
+        if (tokenKinds[index] == TEXT) throw new NumberFormatException("Invalid number: " + texts[index]);
+        int position = tokenStarts[index];
+        int tokenEnd = tokenEnds[index];
+        boolean negative = position < tokenEnd && bytes[position] == '-';
+        if (negative) position++;
+        if (position == tokenEnd || tokenEnd - position > 18) {
+            throw new NumberFormatException("Invalid number: " + argument(index));
+        }
+        long value = 0;
+        for (; position < tokenEnd; position++) {
+            int digit = bytes[position] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid number: " + argument(index));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private void addSlice(int from, int to) {
+        tokenKinds[tokenCount] = SLICE;
+        tokenStarts[tokenCount] = from;
+        tokenEnds[tokenCount] = to;
+        tokenCount++;
+    }
+
+    private void addText(String text) {
+        tokenKinds[tokenCount] = TEXT;
+        texts[tokenCount] = text;
+        tokenCount++;
+    }
+
+    private void addNumber(long number) {
+        tokenKinds[tokenCount] = NUMBER;
+        numbers[tokenCount] = number;
+        tokenCount++;
+    }
+
+    /* A user or group name, a single token in text */
+    private void readName() {
+        readString(true);
+    }
+
+    /* The text of a message, the rest of the line in text */
+    private void readText() {
+        readString(false);
+    }
+
+    private void readString(boolean name) {
+        long length = readVarint();
+        if (length < 0 || length > end - position) {
+            position = end + 1; // malformed
+            return;
+        }
+        int stringEnd = position + (int) length;
+        for (int i = position; i < stringEnd; i++) {
+            byte b = bytes[i];
+            if (b == '\n' || b == '\r' || name && b == ' ') {
+                position = end + 1; // malformed
+                return;
+            }
+        }
+        addSlice(position, stringEnd);
+        position = stringEnd;
+    }
+
+    /* Group id, presented as the group name, an unknown id gives a name no group has */
+    private void readGroup() {
+        String group = User.getGroupName((int) Math.min(readVarint(), Integer.MAX_VALUE));
+        addText(group == null ? "" : group);
+    }
+
+    /* -1 if the varint is cut or too long, the frame is then malformed */
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64 && position < end; shift += 7) {
+            int b = bytes[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        position = end + 1;
+        return -1;
+    }
+
+    private String decode(int from, int to) {
+        return new String(bytes, from, Math.max(0, to - from), StandardCharsets.UTF_8);
+    }
+}
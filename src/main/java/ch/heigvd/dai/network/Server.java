@@ -2,23 +2,54 @@ package ch.heigvd.dai.network;
 import ch.heigvd.dai.util.*;
 import picocli.CommandLine;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 
 @CommandLine.Command(name = "server", description = "Start the server part of the networkd.")
 public class Server implements Callable<Integer> {
 
-    private CopyOnWriteArrayList<User> users = new CopyOnWriteArrayList<>();
+    private final UserRegistry users = new UserRegistry();
+    private final Metrics metrics = new Metrics();
+    private Federation federation; // null when the server runs alone
+    private HistoryStore historyStore;
+    private HistoryCache historyCache;
+    private GroupShards groups; // members and history writers of the groups
+    private Inbox inbox; // private messages of the users that are not connected
     public  String END_OF_LINE = "\n";
     public  char MESSAGE_MAX_SIZE = 100;
     public  int MINIMUM_PORT = 1025;
     public  int MAXIMUM_PORT = 65535;
+    public static final int LIST_GROUPS_PAGE_SIZE = 100;
+    public static final String GROUPS_FILE = "groups.txt"; // journal of the created groups in HISTORY_DIR, no group has a dot
 
     @CommandLine.Option(
             names = {"-p", "--port"},
@@ -26,20 +57,336 @@ public class Server implements Callable<Integer> {
             defaultValue = "1234")
     protected int PORT;
 
+    @CommandLine.Option(
+            names = {"--io-mode"},
+            description = "Connection handling, BLOCKING (one thread per client) or NIO (selector event loops) (default: ${DEFAULT-VALUE}).",
+            defaultValue = "BLOCKING")
+    protected IoMode IO_MODE;
+
+    @CommandLine.Option(
+            names = {"--selector-threads"},
+            description = "Number of event loops used in NIO mode (default: ${DEFAULT-VALUE}).",
+            defaultValue = "4")
+    protected int SELECTOR_THREADS;
+
+    @CommandLine.Option(
+            names = {"--threads"},
+            description = "Threads running the clients in BLOCKING mode, PLATFORM or VIRTUAL (default: ${DEFAULT-VALUE}).",
+            defaultValue = "PLATFORM")
+    protected ThreadMode THREAD_MODE;
+
+    @CommandLine.Option(
+            names = {"--max-sessions"},
+            description = "Maximum number of clients connected at the same time, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int MAX_SESSIONS;
+
+    @CommandLine.Option(
+            names = {"--backlog"},
+            description = "Maximum number of pending connections waiting to be accepted (default: ${DEFAULT-VALUE}).",
+            defaultValue = "50")
+    protected int BACKLOG;
+
+    @CommandLine.Option(
+            names = {"--report-interval"},
+            description = "Seconds between two reports of connections/s and memory per connection, 0 to disable (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int REPORT_INTERVAL;
+
+    public enum IoMode {
+        BLOCKING,
+        NIO
+    }
+
+    public enum ThreadMode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    @CommandLine.Option(
+            names = {"--outbound-queue-size"},
+            description = "Maximum number of lines waiting to be sent to one client (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1024")
+    protected int OUTBOUND_QUEUE_SIZE;
+
+    @CommandLine.Option(
+            names = {"--slow-consumer-policy"},
+            description = "What to do when the outbound queue of a client is full, DROP_OLDEST, DROP_NEWEST or DISCONNECT (default: ${DEFAULT-VALUE}).",
+            defaultValue = "DISCONNECT")
+    protected Connection.OverflowPolicy SLOW_CONSUMER_POLICY;
+
+    @CommandLine.Option(
+            names = {"--history-durability"},
+            description = "When the history is synced to the disk, NONE (left to the OS), BATCH (every write) or INTERVAL (default: ${DEFAULT-VALUE}).",
+            defaultValue = "NONE")
+    protected HistoryWriter.Durability HISTORY_DURABILITY;
+
+    @CommandLine.Option(
+            names = {"--fsync-interval"},
+            description = "Milliseconds between two syncs of the history with --history-durability=INTERVAL (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1000")
+    protected int FSYNC_INTERVAL;
+
+    @CommandLine.Option(
+            names = {"--history-dir"},
+            description = "Directory where the group history is stored (default: ${DEFAULT-VALUE}).",
+            defaultValue = "history")
+    protected Path HISTORY_DIR;
+
+    @CommandLine.Option(
+            names = {"--segment-size"},
+            description = "Maximum size in bytes of one history segment file (default: ${DEFAULT-VALUE}).",
+            defaultValue = "67108864")
+    protected long SEGMENT_SIZE;
+
+    @CommandLine.Option(
+            names = {"--history-compression"},
+            description = "How the full history segments are stored, NONE or DEFLATE (compressed by blocks) (default: ${DEFAULT-VALUE}).",
+            defaultValue = "NONE")
+    protected HistoryStore.Compression HISTORY_COMPRESSION;
+
+    @CommandLine.Option(
+            names = {"--history-cache-size"},
+            description = "Number of recent messages of each group kept in memory (default: ${DEFAULT-VALUE}).",
+            defaultValue = "256")
+    protected int HISTORY_CACHE_SIZE;
+
+    @CommandLine.Option(
+            names = {"--history-cache-budget"},
+            description = "Memory in MB for the recent messages of all the groups, the least used groups are evicted (default: ${DEFAULT-VALUE}).",
+            defaultValue = "64")
+    protected int HISTORY_CACHE_BUDGET;
+
+    @CommandLine.Option(
+            names = {"--flush-delay"},
+            description = "Microseconds a frame may wait to be written to the socket with the next ones, 0 to write as soon as the queue is empty (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int FLUSH_DELAY;
+
+    @CommandLine.Option(
+            names = {"--shards"},
+            description = "Number of threads owning the groups, their members and their history, 0 for one per core (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int SHARDS;
+
+    @CommandLine.Option(
+            names = {"--max-groups"},
+            description = "Maximum number of groups, the default ones included (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1000000")
+    protected int MAX_GROUPS;
+
+    @CommandLine.Option(
+            names = {"--group-idle-timeout"},
+            description = "Seconds without message nor read after which the history files of a group are closed (default: ${DEFAULT-VALUE}).",
+            defaultValue = "60")
+    protected int GROUP_IDLE_TIMEOUT;
+
+    @CommandLine.Option(
+            names = {"--inbox-dir"},
+            description = "Directory where the private messages of the users that are not connected are written (default: ${DEFAULT-VALUE}).",
+            defaultValue = "inbox")
+    protected Path INBOX_DIR;
+
+    @CommandLine.Option(
+            names = {"--inbox-memory"},
+            description = "Memory in MB for the private messages of the users that are not connected, the next ones are written to the disk (default: ${DEFAULT-VALUE}).",
+            defaultValue = "16")
+    protected int INBOX_MEMORY;
+
+    @CommandLine.Option(
+            names = {"--inbox-max-size"},
+            description = "Maximum size in KB of the messages waiting for one user, 0 to refuse the messages to users that are not connected (default: ${DEFAULT-VALUE}).",
+            defaultValue = "1024")
+    protected int INBOX_MAX_SIZE;
+
+    @CommandLine.Option(
+            names = {"--connection-rate-limit"},
+            description = "Requests per second of one connection, the next ones get ERROR 9, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int CONNECTION_RATE_LIMIT;
+
+    @CommandLine.Option(
+            names = {"--connection-byte-limit"},
+            description = "KB per second of requests of one connection, the next ones get ERROR 9, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int CONNECTION_BYTE_LIMIT;
+
+    @CommandLine.Option(
+            names = {"--user-message-limit"},
+            description = "Private and group messages per second of one user, a BATCH counts each of its messages, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int USER_MESSAGE_LIMIT;
+
+    @CommandLine.Option(
+            names = {"--user-byte-limit"},
+            description = "KB per second of private and group messages of one user, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int USER_BYTE_LIMIT;
+
+    @CommandLine.Option(
+            names = {"--accept-rate-limit"},
+            description = "New connections accepted per second, the next ones are closed at once, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int ACCEPT_RATE_LIMIT;
+
+    @CommandLine.Option(
+            names = {"--admin-port"},
+            description = "Port on localhost where the stats are written to whoever connects, one \"<name> <value>\" per line, 0 to disable (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int ADMIN_PORT;
+
+    @CommandLine.Option(
+            names = {"--federation-port"},
+            description = "Port where the other nodes connect to share their users, 0 to run alone (default: ${DEFAULT-VALUE}).",
+            defaultValue = "0")
+    protected int FEDERATION_PORT;
+
+    @CommandLine.Option(
+            names = {"--federation-host"},
+            description = "Address the federation port listens on, the nodes do not authenticate each other (default: the loopback address).")
+    protected String FEDERATION_HOST;
+
+    @CommandLine.Option(
+            names = {"--peers"},
+            split = ",",
+            description = "Federation addresses host:port of the other nodes, comma separated (default: none).")
+    protected List<String> PEERS = new ArrayList<>();
+
+    @CommandLine.Option(
+            names = {"--node-address"},
+            description = "Address of this node as written in the --peers of the other nodes (default: localhost:<federation port>).")
+    protected String NODE_ADDRESS;
+
+    private ThreadFactory clientThreadFactory;
+    private Semaphore sessionPermits; // null when the number of sessions is not limited
+    private RateLimiter acceptLimit; // null when the new connections are not limited
+    private final LongAdder rejectedSessions = new LongAdder();
+    private final LongAdder rateLimitedRequests = new LongAdder();
+    private final LongAdder invalidLines = new LongAdder();
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicLong acceptedSessions = new AtomicLong();
+    private final LongAdder droppedLines = new LongAdder();
+    private final LongAdder slowConsumerDisconnects = new LongAdder();
+    private final LongAdder writtenFrames = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+
     @Override
     public Integer call(){
         if (PORT < MINIMUM_PORT || PORT > MAXIMUM_PORT) {
             System.err.println("Error: Port must be between " + MINIMUM_PORT + " " + "and " + MAXIMUM_PORT);
             return 1;
         }
+        if (MAX_SESSIONS < 0 || BACKLOG < 1 || REPORT_INTERVAL < 0 || OUTBOUND_QUEUE_SIZE < 1) {
+            System.err.println("Error: --max-sessions and --report-interval must be positive, --backlog and --outbound-queue-size at least 1");
+            return 1;
+        }
+        if (FLUSH_DELAY < 0 || SHARDS < 0) {
+            System.err.println("Error: --flush-delay and --shards must be positive");
+            return 1;
+        }
+        if (MAX_GROUPS < GroupTable.DEFAULT_GROUPS.length || GROUP_IDLE_TIMEOUT < 1) {
+            System.err.println("Error: --max-groups must be at least " + GroupTable.DEFAULT_GROUPS.length + " and --group-idle-timeout at least 1");
+            return 1;
+        }
+        if (ADMIN_PORT != 0 && (ADMIN_PORT < MINIMUM_PORT || ADMIN_PORT > MAXIMUM_PORT || ADMIN_PORT == PORT)) {
+            System.err.println("Error: --admin-port must be between " + MINIMUM_PORT + " and " + MAXIMUM_PORT + " and not the port of the server");
+            return 1;
+        }
+        if (CONNECTION_RATE_LIMIT < 0 || CONNECTION_BYTE_LIMIT < 0 || USER_MESSAGE_LIMIT < 0 || USER_BYTE_LIMIT < 0 || ACCEPT_RATE_LIMIT < 0) {
+            System.err.println("Error: the rate limits must be positive");
+            return 1;
+        }
+        if (INBOX_MEMORY < 0 || INBOX_MAX_SIZE < 0) {
+            System.err.println("Error: --inbox-memory and --inbox-max-size must be positive");
+            return 1;
+        }
+        if (HISTORY_CACHE_SIZE < 1 || HISTORY_CACHE_BUDGET < 1) {
+            System.err.println("Error: --history-cache-size and --history-cache-budget must be at least 1");
+            return 1;
+        }
+        if (FSYNC_INTERVAL < 1 || SEGMENT_SIZE < HistoryStore.INDEX_INTERVAL) {
+            System.err.println("Error: --fsync-interval must be at least 1 and --segment-size at least " + HistoryStore.INDEX_INTERVAL);
+            return 1;
+        }
+        if (FEDERATION_PORT != 0 && (FEDERATION_PORT < MINIMUM_PORT || FEDERATION_PORT > MAXIMUM_PORT || FEDERATION_PORT == PORT)) {
+            System.err.println("Error: --federation-port must be between " + MINIMUM_PORT + " and " + MAXIMUM_PORT + " and not the port of the server");
+            return 1;
+        }
+        for (String peer : PEERS) {
+            if (!peer.matches(".+:\\d+")) {
+                System.err.println("Error: --peers must be host:port addresses, not " + peer);
+                return 1;
+            }
+        }
+        if (FEDERATION_PORT == 0 && !PEERS.isEmpty()) {
+            System.err.println("Error: --peers needs a --federation-port");
+            return 1;
+        }
+        openHistory();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::closeHistory));
+        if (FEDERATION_PORT != 0) {
+            federation = new Federation(this, users, groups,
+                    NODE_ADDRESS != null ? NODE_ADDRESS : "localhost:" + FEDERATION_PORT, FEDERATION_HOST, FEDERATION_PORT, PEERS);
+            try {
+                federation.start();
+            } catch (IOException e) {
+                System.err.println("Error: Cannot listen on the federation port " + FEDERATION_PORT + ": " + e.getMessage());
+                return 1;
+            }
+            groups.onMembershipChange(federation::onMembershipChange);
+        }
+        if (MAX_SESSIONS > 0) {
+            sessionPermits = new Semaphore(MAX_SESSIONS);
+        }
+        acceptLimit = RateLimiter.of(ACCEPT_RATE_LIMIT);
+        if (REPORT_INTERVAL > 0) {
+            startReporter();
+        }
+        if (ADMIN_PORT != 0) {
+            try {
+                startAdmin();
+            } catch (IOException e) {
+                System.err.println("Error: Cannot listen on the admin port " + ADMIN_PORT + ": " + e.getMessage());
+                return 1;
+            }
+        }
+
+        if (IO_MODE == IoMode.NIO) {
+            if (SELECTOR_THREADS < 1) {
+                System.err.println("Error: At least one selector thread is needed");
+                return 1;
+            }
+            try {
+                new NioServer(this, PORT, BACKLOG, SELECTOR_THREADS).run();
+            } catch (IOException e) {
+                System.out.println("[Server] IO exception: " + e);
+            }
+            return 0;
+        }
+
+        clientThreadFactory = THREAD_MODE == ThreadMode.VIRTUAL
+                ? Thread.ofVirtual().name("client-", 0).factory()
+                : Thread.ofPlatform().name("client-", 0).factory();
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("[Server] Listening on port " + PORT);
+        try (ExecutorService executor = Executors.newThreadPerTaskExecutor(clientThreadFactory);
+             // Opened from a channel so that the sockets have one, EXPORT uses FileChannel.transferTo
+             ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(PORT), BACKLOG).socket()) {
+            System.out.println("[Server] Listening on port " + PORT + " (" + THREAD_MODE + " threads)");
 
             while (!serverSocket.isClosed()) {
-                Socket socket = serverSocket.accept(); // blocking
-                Thread clientThread = new Thread(new ClientHandler(socket));
-                clientThread.start();
+                acquireSession();
+                Socket socket;
+                try {
+                    socket = serverSocket.accept(); // blocking
+                } catch (IOException e) {
+                    releaseSession();
+                    throw e;
+                }
+                if (!admit()) {
+                    socket.close();
+                    continue;
+                }
+                executor.execute(new ClientHandler(socket));
             }
             System.out.println("[Server] Closing connection");
         } catch (IOException e) {
@@ -48,7 +395,34 @@ public class Server implements Callable<Integer> {
         return 0;
     }
 
+    /* Opens the history of HISTORY_DIR and starts the group shards, the server can then process requests without a socket */
+    void openHistory() {
+        historyStore = new HistoryStore(HISTORY_DIR, SEGMENT_SIZE, HISTORY_COMPRESSION);
+        historyCache = new HistoryCache(historyStore, HISTORY_CACHE_SIZE, HISTORY_CACHE_BUDGET * 1024L * 1024L);
+        int shards = SHARDS > 0 ? SHARDS : Runtime.getRuntime().availableProcessors();
+        groups = new GroupShards(shards, historyStore, historyCache, HISTORY_DURABILITY, FSYNC_INTERVAL,
+                TimeUnit.SECONDS.toMillis(GROUP_IDLE_TIMEOUT), metrics.historyAppend());
+        System.out.println("[Server] " + shards + " group shards");
+        inbox = new Inbox(INBOX_DIR, INBOX_MEMORY * 1024L * 1024L, INBOX_MAX_SIZE * 1024L);
+        try {
+            Files.createDirectories(HISTORY_DIR);
+            User.getGroupTable().open(HISTORY_DIR.resolve(GROUPS_FILE));
+            System.out.println("[Server] " + User.getGroupTable().size() + " groups");
+        } catch (IOException e) {
+            System.out.println("[Server] IO exception, the created groups will not be kept: " + e);
+        }
+    }
+
+    /* Runs the group work still queued, writes its messages and closes the history, then writes the inbox */
+    void closeHistory() {
+        groups.close();
+        historyStore.close();
+        User.getGroupTable().close();
+        inbox.close();
+    }
+
     class ClientHandler implements Runnable {
+        public static final int READ_BUFFER_SIZE = 8192;
 
         private final Socket socket;
 
@@ -58,343 +432,1173 @@ public class Server implements Callable<Integer> {
 
         @Override
         public void run() {
+            SocketConnection connection = null;
             try (socket; // This allows to use try-with-resources with the socket
-                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-                 BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))){
-                System.out.println(
-                        "[Server] New client connected from "
-                                + socket.getInetAddress().getHostAddress()
-                                + ":"
-                                + socket.getPort());
-
-                while (!socket.isClosed()) {
-                    String userInput = in.readLine(); // blocking
-                    if(userInput == null) { // Client disconnected
-                        User.removeUserFromAddress(users, socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
-                        System.out.println(
-                                "[Server] Leaving client from "
-                                        + socket.getInetAddress().getHostAddress()
-                                        + ":"
-                                        + socket.getPort());
-                        break;
+                 InputStream in = socket.getInputStream();
+                 BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream())){
+                connection = new SocketConnection(socket, out, Server.this);
+                onConnect(connection);
+
+                // The lines are parsed from the bytes read, no String is made for the whole line
+                CommandDecoder decoder = new CommandDecoder(Server.this, connection);
+                byte[] buffer = new byte[READ_BUFFER_SIZE];
+                int read;
+                while (!socket.isClosed() && (read = in.read(buffer)) != -1) { // blocking, -1 once the client disconnected
+                    decoder.feed(buffer, 0, read);
+                    if (FLUSH_DELAY > 0 && in.available() == 0) {
+                        connection.onReadIdle();
                     }
-                    processClientInput(userInput, socket, out);
                 }
             } catch (IOException e) {
                 System.out.println("[Server] exception: " + e);
+            } finally {
+                if (connection != null) {
+                    connection.close();
+                    onDisconnect(connection);
+                } else {
+                    releaseSession();
+                }
             }
         }
     }
 
+    /*
+     * Connection used by the blocking mode.
+     * The handler thread reads the socket, a second thread of the same kind drains the outbound queue
+     * and flushes once the queue is empty, so the lines queued by several senders share one flush.
+     * With --flush-delay the writer waits up to that delay after the first frame for more frames before flushing,
+     * unless the buffer fills up or the reader has nothing left to process.
+     */
+    static class SocketConnection extends Connection {
+        private final Socket socket;
+        private final BufferedOutputStream out;
+        private final Server server;
+        private final long flushDelay; // nanoseconds
+        private final Thread writer;
+        private volatile boolean writing; // the writer holds frames that are not flushed yet
+        private volatile boolean lingering; // the writer is waiting for more frames before flushing
+        private volatile boolean flushRequested;
 
-    private void processClientInput(String input, Socket socket, BufferedWriter out) throws IOException {
-        if (input == null) return;
-        String[] userInputSplit = input.split(" ", 2);
+        SocketConnection(Socket socket, BufferedOutputStream out, Server server) {
+            super(socket.getInetAddress().getHostAddress() + ":" + socket.getPort(), server);
+            this.socket = socket;
+            this.out = out;
+            this.server = server;
+            this.flushDelay = server.flushDelayNanos();
+            this.writer = server.clientThreadFactory.newThread(this::drainOutbound);
+            this.writer.start();
+        }
 
-        ClientCommand command = null;
-        try {
-            command = ClientCommand.valueOf(userInputSplit[0]);
-        } catch (IllegalArgumentException e) {
-            System.out.println("Invalid/unknown command sent by client, ignore.");
+        private void drainOutbound() {
+            try {
+                while (!isClosed()) {
+                    Frame frame = takeOutbound(); // blocking
+                    writing = true;
+                    long deadline = System.nanoTime() + flushDelay;
+                    int frames = 0;
+                    while (frame != null) {
+                        if (frame.size() > 0) {
+                            frame.writeTo(out); // BufferedOutputStream writes to the socket by itself once full
+                            frames++;
+                        }
+                        frame = pollOutbound();
+                        if (frame == null && resumeStreams()) {
+                            frame = Frame.EMPTY; // A part was written, look at the queue again
+                        }
+                        if (frame == null && flushDelay > 0) {
+                            frame = linger(deadline);
+                        }
+                    }
+                    out.flush();
+                    writing = false;
+                    if (frames > 0) {
+                        server.onFlush(frames);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The connection was closed
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /* Waits for the next frame until the deadline, null once it is reached or the reader asked for a flush */
+        private Frame linger(long deadline) throws InterruptedException {
+            lingering = true;
+            try {
+                long wait;
+                while (!flushRequested && (wait = deadline - System.nanoTime()) > 0) {
+                    Frame frame = pollOutbound(wait);
+                    if (frame != null) return frame;
+                }
+                flushRequested = false;
+                return null;
+            } finally {
+                lingering = false;
+            }
+        }
+
+        @Override
+        protected void onReadIdle() {
+            if (writing || getOutboundDepth() > 0) {
+                flushRequested = true;
+                if (lingering) {
+                    wakeWriter();
+                }
+            }
+        }
+
+        @Override
+        protected long transferTo(FileChannel file, long position, long count) throws IOException {
+            out.flush(); // The lines written before go first
+            long transferred = 0;
+            while (transferred < count) { // The channel is blocking, it only returns once the bytes are sent
+                transferred += file.transferTo(position + transferred, count - transferred, socket.getChannel());
+            }
+            return transferred;
+        }
+
+        @Override
+        protected void writeDirect(ByteBuffer bytes) throws IOException {
+            out.flush();
+            while (bytes.hasRemaining()) {
+                socket.getChannel().write(bytes);
+            }
+        }
+
+        @Override
+        protected void onWritePending() {
+            // The writer thread is waiting on the outbound queue
+        }
+
+        @Override
+        protected void onClose() {
+            writer.interrupt();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println("[Server] exception: " + e);
+            }
+        }
+    }
+
+    /* Blocks the accept loop while the maximum number of sessions is reached */
+    void acquireSession() {
+        if (sessionPermits != null) {
+            sessionPermits.acquireUninterruptibly();
+        }
+    }
+
+    /* Admission control of the accept loops: false if the connection just accepted must be closed */
+    boolean admit() {
+        if (RateLimiter.allows(acceptLimit, 1)) return true;
+        rejectedSessions.increment();
+        releaseSession();
+        return false;
+    }
+
+    void releaseSession() {
+        if (sessionPermits != null) {
+            sessionPermits.release();
+        }
+    }
+
+    void onOutboundDropped() {
+        droppedLines.increment();
+    }
+
+    void onSlowConsumerDisconnect() {
+        slowConsumerDisconnects.increment();
+    }
+
+    /* A write to the socket of a connection, holding the given number of frames */
+    void onFlush(int frames) {
+        writtenFrames.add(frames);
+        flushes.increment();
+    }
+
+    /* Average number of frames written by one flush since the start */
+    double framesPerFlush() {
+        long count = flushes.sum();
+        return count == 0 ? 0 : writtenFrames.sum() / (double) count;
+    }
+
+    long flushDelayNanos() {
+        return TimeUnit.MICROSECONDS.toNanos(FLUSH_DELAY);
+    }
+
+    void onConnect(Connection connection) {
+        activeSessions.incrementAndGet();
+        acceptedSessions.incrementAndGet();
+        System.out.println("[Server] New client connected from " + connection.getAddress());
+    }
+
+    void onDisconnect(Connection connection) {
+        User user = connection.getUser();
+        if (user != null) {
+            leave(user);
+        }
+        activeSessions.decrementAndGet();
+        releaseSession();
+        System.out.println("[Server] Leaving client from " + connection.getAddress());
+    }
+
+    /* Removes the user from the server and its groups, and tells the other nodes */
+    private void leave(User user) {
+        users.unregister(user);
+        groups.unsubscribeAll(user);
+        if (federation != null) {
+            federation.onLeave(user.getName());
+        }
+    }
+
+    /*
+     * Prints the accepted connections per second and the used heap per connected client.
+     * Running the same load with --threads=PLATFORM and --threads=VIRTUAL (or --io-mode=NIO)
+     * on the same machine gives the comparison between the modes.
+     */
+    private void startReporter() {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().factory());
+        Runtime runtime = Runtime.getRuntime();
+        long baselineHeap = runtime.totalMemory() - runtime.freeMemory(); // heap used before any client
+        long[] lastAccepted = {0};
+        reporter.scheduleAtFixedRate(() -> {
+            long accepted = acceptedSessions.get();
+            int active = activeSessions.get();
+            long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+            int queuedLines = 0;
+            int maxQueueDepth = 0;
+            for (User user : users.getUsers()) {
+                int depth = user.getConnection().getOutboundDepth();
+                queuedLines += depth;
+                maxQueueDepth = Math.max(maxQueueDepth, depth);
+            }
+            System.out.printf("[Server] %s: %d sessions, %.1f connections/s, %d KB heap, %.1f KB per session, "
+                            + "%d queued lines (max %d per client), %d dropped lines, %d slow consumers disconnected, "
+                            + "history cache %d KB, %d hits, %d misses, %d evictions, %.1f frames per flush%n",
+                    IO_MODE == IoMode.NIO ? "NIO" : THREAD_MODE + " threads",
+                    active,
+                    (accepted - lastAccepted[0]) / (double) REPORT_INTERVAL,
+                    usedHeap / 1024,
+                    active == 0 ? 0.0 : Math.max(0, usedHeap - baselineHeap) / 1024.0 / active,
+                    queuedLines,
+                    maxQueueDepth,
+                    droppedLines.sum(),
+                    slowConsumerDisconnects.sum(),
+                    historyCache.getUsedBytes() / 1024,
+                    historyCache.getHits(),
+                    historyCache.getMisses(),
+                    historyCache.getEvictions(),
+                    framesPerFlush());
+            lastAccepted[0] = accepted;
+        }, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /* Writes the stats to each connection of the admin port and closes it, only reachable from this machine */
+    private void startAdmin() throws IOException {
+        ServerSocket adminSocket = new ServerSocket(ADMIN_PORT, BACKLOG, InetAddress.getLoopbackAddress());
+        System.out.println("[Server] Stats on localhost:" + ADMIN_PORT);
+        Thread.ofVirtual().name("admin").start(() -> {
+            while (!adminSocket.isClosed()) {
+                try (Socket socket = adminSocket.accept();
+                     Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+                    for (Map.Entry<String, Long> stat : stats().entrySet()) {
+                        out.write(stat.getKey() + " " + stat.getValue() + END_OF_LINE);
+                    }
+                } catch (IOException e) {
+                    System.out.println("[Server] Admin exception: " + e);
+                }
+            }
+        });
+    }
+
+    /*
+     * Counters and gauges of the server, in a stable order: the gauges are read from the state of the server now,
+     * the counters and latencies come from the metrics recorded since the start.
+     */
+    Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("sessions.active", (long) activeSessions.get());
+        stats.put("sessions.accepted", acceptedSessions.get());
+        stats.put("sessions.rejected", rejectedSessions.sum());
+        stats.put("requests.rate_limited", rateLimitedRequests.sum());
+        stats.put("requests.invalid", invalidLines.sum());
+        stats.put("users.registered", (long) users.size());
+        stats.put("groups.count", (long) User.getGroupTable().size());
+        long withMembers = 0;
+        long members = 0;
+        long maxMembers = 0;
+        for (int count : groups.memberCounts()) {
+            withMembers++;
+            members += count;
+            maxMembers = Math.max(maxMembers, count);
+        }
+        stats.put("groups.with_members", withMembers);
+        stats.put("groups.members.total", members);
+        stats.put("groups.members.avg", withMembers == 0 ? 0 : Math.round((double) members / withMembers));
+        stats.put("groups.members.max", maxMembers);
+        long queued = 0;
+        long maxDepth = 0;
+        for (User user : users.getUsers()) {
+            int depth = user.getConnection().getOutboundDepth();
+            queued += depth;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        stats.put("outbound.queued", queued);
+        stats.put("outbound.max_depth", maxDepth);
+        stats.put("outbound.dropped", droppedLines.sum());
+        stats.put("outbound.slow_consumers", slowConsumerDisconnects.sum());
+        stats.put("outbound.frames", writtenFrames.sum());
+        stats.put("outbound.flushes", flushes.sum());
+        stats.put("history.cache.bytes", historyCache.getUsedBytes());
+        stats.put("history.cache.hits", historyCache.getHits());
+        stats.put("history.cache.misses", historyCache.getMisses());
+        stats.put("history.cache.evictions", historyCache.getEvictions());
+        stats.put("history.groups.open", (long) historyStore.getOpenGroups());
+        stats.put("history.groups.released", historyStore.getReleasedGroups());
+        stats.put("inbox.memory.bytes", inbox.getMemoryBytes());
+        stats.put("inbox.stored", inbox.getStored());
+        stats.put("inbox.spilled", inbox.getSpilled());
+        stats.put("inbox.delivered", inbox.getDelivered());
+        if (federation != null) {
+            stats.put("federation.peers.connected", (long) federation.connectedPeers());
+            stats.put("federation.users.remote", (long) federation.remoteUserCount());
+        }
+        metrics.addTo(stats);
+        return stats;
+    }
+
+    void processRequest(Request request, Connection connection) throws IOException {
+        ClientCommand command = request.command();
+
+        // Arguments the command cannot do without
+        int required = switch (command) {
+            case SEND_PRIVATE, SEND_GROUP -> 2;
+            case JOIN, PARTICIPATE, HISTORY, EXPORT, BATCH, CREATE_GROUP, DELETE_GROUP -> 1;
+            case LIST_GROUPS, LIST_USERS, COMPRESS, STATS -> 0;
+        };
+        if (request.argumentCount() < required) {
+            processInvalidLine(request.length(), connection);
             return;
         }
 
-        /* Main logic when processing the userInput */
+        // Limits checked before any work, a message refused here is neither delivered nor written to the history
+        Batch batch = connection.getBatch();
+        boolean allowed = connection.allows(request);
+        if (allowed && (command == ClientCommand.SEND_PRIVATE || command == ClientCommand.SEND_GROUP)) {
+            User user = connection.getUser();
+            allowed = user == null || user.allowsMessage(request.restLength(1));
+        }
+        if (!allowed) {
+            rateLimitedRequests.increment();
+        }
+
+        // The lines after BATCH are its items, they are processed together once the last one arrived
+        if (batch != null) {
+            if (command != ClientCommand.SEND_PRIVATE && command != ClientCommand.SEND_GROUP) {
+                batch.addFailed(command, Batch.INVALID);
+            } else if (request.restLength(1) > MESSAGE_MAX_SIZE) {
+                batch.addFailed(command, 2);
+            } else if (!allowed) {
+                batch.addFailed(command, ErrorMapping.RATE_LIMITED);
+            } else {
+                batch.add(command, request.argument(0), request.rest(1));
+            }
+            processBatchItem(batch, connection);
+            return;
+        }
+
+        if (!allowed) {
+            sendErrorResponse(request, connection, ErrorMapping.RATE_LIMITED);
+            return;
+        }
+
+        /* Main logic when processing the request */
+        long start = System.nanoTime();
         switch (command) {
-            case JOIN -> processJoin(userInputSplit, socket, out);
-            case SEND_PRIVATE -> processSendPrivate(userInputSplit, socket, out);
-            case SEND_GROUP -> processSendGroup(userInputSplit, socket, out);
-            case PARTICIPATE -> processParticipate(userInputSplit, socket, out);
-            case HISTORY -> processHistory(userInputSplit, socket, out);
-            case LIST_GROUPS -> processListGroups(out);
-            case LIST_USERS -> processListUsers(out);
+            case JOIN -> processJoin(request, connection);
+            case SEND_PRIVATE -> processSendPrivate(request, connection);
+            case SEND_GROUP -> processSendGroup(request, connection);
+            case PARTICIPATE -> processParticipate(request, connection);
+            case HISTORY -> processHistory(request, connection);
+            case EXPORT -> processExport(request, connection);
+            case LIST_GROUPS -> processListGroups(request, connection);
+            case LIST_USERS -> processListUsers(request, connection);
+            case BATCH -> processBatch(request, connection);
+            case COMPRESS -> processCompress(request, connection);
+            case STATS -> processStats(request, connection);
+            case CREATE_GROUP -> processCreateGroup(request, connection);
+            case DELETE_GROUP -> processDeleteGroup(request, connection);
+        }
+        metrics.onRequest(command, System.nanoTime() - start);
+    }
+
+    /* A line that is not a known command, or a command without its arguments, length bytes long */
+    void processInvalidLine(long length, Connection connection) throws IOException {
+        invalidLines.increment();
+        if (!allowsLine(null, Protocol.NO_TAG, length, connection)) return;
+        Batch batch = connection.getBatch();
+        if (batch != null) {
+            batch.addFailed(null, Batch.INVALID);
+            processBatchItem(batch, connection);
         }
     }
 
-    private void processJoin(String[] input,Socket socket, BufferedWriter out) throws IOException {
-        String name = input[1];
+    /* A line longer than CommandDecoder.MAX_LINE_SIZE, its length bytes were skipped without being buffered */
+    void processOversizedLine(ClientCommand command, long tag, long length, Connection connection) throws IOException {
+        invalidLines.increment();
+        if (!allowsLine(command, tag, length, connection)) return;
+        Batch batch = connection.getBatch();
+        if (batch != null) {
+            boolean send = command == ClientCommand.SEND_PRIVATE || command == ClientCommand.SEND_GROUP;
+            batch.addFailed(command, send ? 2 : Batch.INVALID);
+            processBatchItem(batch, connection);
+            return;
+        }
+        if (command == ClientCommand.SEND_PRIVATE || command == ClientCommand.SEND_GROUP) {
+            connection.write(connection.getProtocol().error(tag, connection.getUser() == null ? 3 : 2));
+        }
+    }
+
+    /*
+     * Takes a line that is not a request from the limits of the connection, a client sending garbage is held to
+     * the same rate as the others. Answers RATE_LIMITED and returns false if it is over.
+     */
+    private boolean allowsLine(ClientCommand command, long tag, long length, Connection connection) throws IOException {
+        if (connection.allows(length)) return true;
+        rateLimitedRequests.increment();
+        Batch batch = connection.getBatch();
+        if (batch != null) {
+            batch.addFailed(command, ErrorMapping.RATE_LIMITED);
+            processBatchItem(batch, connection);
+        } else {
+            connection.write(connection.getProtocol().error(tag, ErrorMapping.RATE_LIMITED));
+        }
+        return false;
+    }
+
+    private void processJoin(Request request, Connection connection) throws IOException {
+        String name = request.rest(0);
         int errorCode = 0;
 
-        /* Duplicate usernames */
-        if(User.findUserByName(users, name) != null) {
+        User user = new User(name, connection);
+        user.setRateLimits(RateLimiter.of(USER_MESSAGE_LIMIT), RateLimiter.of(USER_BYTE_LIMIT * 1024L));
+
+        // With several nodes the name must also be free on the other nodes, the next requests of the client wait for their answers
+        if (federation != null) {
+            long tag = request.tag();
+            connection.await(federation.reserve(name), granted -> {
+                boolean joined = granted && !connection.isClosed() && users.register(user);
+                if (granted) { // Not granted, the reservation is already released
+                    federation.endReserve(name, joined);
+                }
+                if (joined) {
+                    completeJoin(user, tag, connection);
+                } else {
+                    metrics.onError(ClientCommand.JOIN);
+                    connection.write(connection.getProtocol().error(tag, 1));
+                }
+            });
+            return;
+        }
+
+        /* Duplicate usernames, the reservation is atomic so two concurrent JOIN cannot both get the name */
+        if(!users.register(user)) {
             errorCode = 1;
-            sendErrorResponse(out, errorCode);
+            sendErrorResponse(request, connection, errorCode);
             return;
         }
+        completeJoin(user, request.tag(), connection);
+    }
 
-        // If username already has an account, remove it
-        if(User.findUserByAddress(users, socket.getInetAddress().getHostAddress() + ":" + socket.getPort ()) != null) {
-            User.removeUserFromAddress(users, socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
+    /* The name is registered, binds the user to the connection */
+    private void completeJoin(User user, long tag, Connection connection) {
+        // If the client already joined with another username, remove it
+        User previous = connection.getUser();
+        if(previous != null) {
+            leave(previous);
         }
+        connection.setUser(user);
+        System.out.println("[Server] New client joined " + user.getName());
+        connection.write(connection.getProtocol().ok(tag, user.getId()));
+        deliverInbox(user);
+    }
 
-        //Add new username
-        User user = new User(name, socket.getInetAddress().getHostAddress() + ":" + socket.getPort(), out);
-        users.add(user);
-        System.out.println("[Server] New client joined " + name);
-        sendOkResponse(out);
+    /* Sends the messages kept for the user while it was not connected, after the messages before */
+    private void deliverInbox(User user) {
+        Inbox.Backlog backlog = inbox.take(user.getName());
+        if (backlog != null) {
+            user.getConnection().stream(new InboxStream(user, backlog));
+        }
     }
 
-    private void processSendPrivate(String[] input,Socket socket, BufferedWriter out) throws IOException {
-        String recipient = input[1].split(" ", 2)[0];
-        String content = input[1].split(" ", 2)[1];
+    /* Keeps a private message for a recipient that is not connected to any node, false if its inbox is full */
+    private boolean storeInbox(User sender, String recipient, String content) {
+        if (!inbox.store(recipient, sender.getName(), content)) return false;
+        // The recipient may have joined since it was looked up, after its JOIN took its inbox
+        User user = users.findByName(recipient);
+        if (user != null) {
+            deliverInbox(user);
+        }
+        return true;
+    }
 
+    private void processSendPrivate(Request request, Connection connection) throws IOException {
         int errorCode = 0;
 
         // Check if sender is found
         User sender;
-        if((sender = User.findUserByAddress(users, socket.getInetAddress().getHostAddress() + ":" + socket.getPort())) == null){
+        if((sender = connection.getUser()) == null){
             errorCode = 3;
-            sendErrorResponse(out, errorCode);
+            sendErrorResponse(request, connection, errorCode);
             return;
         }
 
-        // Message too long
-        if (content.length() > MESSAGE_MAX_SIZE){
+        // Message too long, checked on the received bytes before any String is made
+        if (request.restLength(1) > MESSAGE_MAX_SIZE){
             errorCode = 2;
-            sendErrorResponse(out, errorCode);
+            sendErrorResponse(request, connection, errorCode);
             return;
         }
+        String recipient = request.argument(0);
+        String content = request.rest(1);
 
-        // Check if recipient is found
+        // Check if recipient is found, on this node or on another one
         User user;
-        if((user = User.findUserByName(users, recipient)) == null) {
+        if((user = users.findByName(recipient)) == null) {
+            if (federation != null && federation.forwardPrivate(sender, recipient, content)
+                    || storeInbox(sender, recipient, content)) {
+                sendOkResponse(request, connection);
+                return;
+            }
             errorCode = 1;
-            sendErrorResponse(out, errorCode);
+            sendErrorResponse(request, connection, errorCode);
             return;
         }
-        user.getOutput().write(ServerCommand.RECEIVE_PRIVATE + " " + sender.getName() + " " + content + END_OF_LINE);
-        user.getOutput().flush();
-        sendOkResponse(out);
+        Connection recipientConnection = user.getConnection();
+        Protocol protocol = recipientConnection.getProtocol();
+        protocol.announce(recipientConnection, sender);
+        recipientConnection.write(protocol.receivePrivate(sender, content));
+        sendOkResponse(request, connection);
     }
 
-    private void processSendGroup(String[] input,Socket socket, BufferedWriter out) throws IOException {
-        String group = input[1].split(" ", 2)[0];
-        String content = input[1].split(" ", 2)[1];
-
+    private void processSendGroup(Request request, Connection connection) throws IOException {
         int errorCode = 0;
 
         // Check if sender has a username
         User sender;
-        if((sender = User.findUserByAddress(users, socket.getInetAddress().getHostAddress() + ":" + socket.getPort())) == null){
+        if((sender = connection.getUser()) == null){
             errorCode = 3;
-            sendErrorResponse(out, errorCode);
+            sendErrorResponse(request, connection, errorCode);
             return;
         }
 
-        // Check if message too long
-        if (content.length() > MESSAGE_MAX_SIZE){
+        // Check if message too long, on the received bytes before any String is made
+        if (request.restLength(1) > MESSAGE_MAX_SIZE){
             errorCode = 2;
-            sendErrorResponse(out, errorCode);
+            sendErrorResponse(request, connection, errorCode);
             return;
         }
+        String group = request.argument(0);
+        String content = request.rest(1);
 
         // Check if valid group name
         if(!User.isValidGroupName(group)) {
             errorCode = 1;
-            sendErrorResponse(out, errorCode);
+            sendErrorResponse(request, connection, errorCode);
             return;
         }
 
         // Check if user in the specific group
         if (!sender.isInGroup(group)){
             errorCode = 4;
-            sendErrorResponse(out, errorCode);
+            sendErrorResponse(request, connection, errorCode);
             return;
         }
 
-        User[] usersToSendMessage = User.findAllUsersByGroup(users, group);
-
-        // Send message to all participants of the group
-        for(User user : usersToSendMessage){
-            if (user == sender) continue;
-            user.getOutput().write(ServerCommand.RECEIVE_GROUP + " " + group + " " + sender.getName() + " " + content + END_OF_LINE);
-            user.getOutput().flush();
+        if (HISTORY_DURABILITY == HistoryWriter.Durability.BATCH) {
+            // Acknowledged by the shard once the message is synced to the disk
+            Frame ok = connection.getProtocol().ok(request.tag());
+            groups.publish(group, sender, List.of(content), () -> connection.write(ok));
+        } else {
+            deliverGroup(group, sender, content);
+        }
+        if (federation != null) {
+            federation.forwardGroup(group, sender, content);
+        }
+        if (HISTORY_DURABILITY != HistoryWriter.Durability.BATCH) {
+            sendOkResponse(request, connection);
         }
+    }
 
-        // Writes message in the txt file
-        String filePath = group.toLowerCase() + ".txt";
-        try(BufferedWriter groupWriter = new BufferedWriter(new FileWriter(filePath, true))){
-            groupWriter.write(sender.getName() + " " + content + END_OF_LINE);
-            groupWriter.flush();
-        }catch (IOException e){
-            System.out.println("[Server] IO exception: " + e);
+    /* Sends a group message to the members of this node and writes it in the history, the sender may be on another node */
+    void deliverGroup(String group, User sender, String content) {
+        // The shard of the group sends it to the participants and batches the history lines of all the senders
+        groups.publish(group, sender, List.of(content));
+    }
+
+    /* A private message forwarded by another node, kept in the inbox if the recipient left meanwhile */
+    void deliverPrivate(User sender, String recipient, String content) {
+        User user = users.findByName(recipient);
+        if (user == null) {
+            storeInbox(sender, recipient, content);
+            return;
         }
-        System.out.println("OUT");
-        sendOkResponse(out);
+        Connection recipientConnection = user.getConnection();
+        Protocol protocol = recipientConnection.getProtocol();
+        protocol.announce(recipientConnection, sender);
+        recipientConnection.write(protocol.receivePrivate(sender, content));
     }
 
-    private void processParticipate(String[] input,Socket socket, BufferedWriter out) throws IOException {
-        String groupName = input[1];
+    private void processParticipate(Request request, Connection connection) throws IOException {
+        String groupName = request.rest(0);
 
         int errorCode = 0;
 
         // Check if sender exists
         User user;
-        if((user = User.findUserByAddress(users, socket.getInetAddress().getHostAddress() + ":" + socket.getPort())) == null){
+        if((user = connection.getUser()) == null){
             errorCode = 2;
-            sendErrorResponse(out, errorCode);
+            sendErrorResponse(request, connection, errorCode);
             return;
         }
 
         // Check if group name is valid
         if (!User.isValidGroupName(groupName)) {
             errorCode = 1;
-            sendErrorResponse(out, errorCode);
+            sendErrorResponse(request, connection, errorCode);
             return;
         }
 
         user.addGroupToUser(groupName);
+        groups.subscribe(groupName, user);
         System.out.println("[Server] " + user.getName() + " joined " + groupName);
-        sendOkResponse(out);
+        sendOkResponse(request, connection, User.getGroupId(groupName));
     }
 
-    private void processHistory(String[] input,Socket socket, BufferedWriter out) throws IOException {
-        String groupName = input[1];
+    private void processHistory(Request request, Connection connection) throws IOException {
+        // HISTORY <group>, HISTORY <group> <from> <count> or HISTORY <group> LAST <count>
+        int arguments = request.argumentCount();
+        String groupName = request.argument(0);
 
         int errorCode = 0;
 
         // Check if sender exists
         User user;
-        if((user = User.findUserByAddress(users, socket.getInetAddress().getHostAddress() + ":" + socket.getPort())) == null){
+        if((user = connection.getUser()) == null){
             errorCode = 2;
-            sendErrorResponse(out, errorCode);
+            sendErrorResponse(request, connection, errorCode);
             return;
         }
 
         if (!User.isValidGroupName(groupName)) {
-            errorCode = 3; // NOT DEFINED IN THE APP PROTOCOL
-            sendErrorResponse(out, errorCode);
+            errorCode = 3;
+            sendErrorResponse(request, connection, errorCode);
             return;
         }
 
         if (!user.isInGroup(groupName)) {
             errorCode = 1;
-            sendErrorResponse(out, errorCode);
+            sendErrorResponse(request, connection, errorCode);
             return;
         }
 
-        // Retrieves all the content in the text file. ("|" as a separator)
-        StringBuilder content = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new FileReader(groupName + ".txt"))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if(content.length() > 1){
-                    content.append("|");
-                }
-                content.append(line);
+        boolean last = arguments == 3 && request.argumentIs(1, "LAST");
+        long from = 0;
+        long count = Long.MAX_VALUE;
+        try {
+            if (last) {
+                count = request.longArgument(2);
+            } else if (arguments == 3) {
+                from = request.longArgument(1);
+                count = request.longArgument(2);
+            } else if (arguments != 1) {
+                throw new NumberFormatException();
             }
-        } catch (IOException e) {
-            System.err.println("An error occurred while retrieving text content: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            count = -1;
         }
-        out.write(ServerCommand.HISTORY + " " + content + END_OF_LINE);
-        out.flush();
-    }
-
-    private void processListGroups(BufferedWriter out) throws IOException {
-        String[] groups = User.getExistingGroups();
-        StringBuilder response = new StringBuilder();
-        for (String group : groups) {
-            response.append(group).append(" ");
+        if (from < 0 || count < 0) {
+            errorCode = 4;
+            sendErrorResponse(request, connection, errorCode);
+            return;
         }
-        out.write(ServerCommand.LIST_GROUPS + " " + response + END_OF_LINE);
-        out.flush();
-    }
 
-    private void processListUsers(BufferedWriter out) throws IOException {
-        StringBuilder response = new StringBuilder();
-        for (User user : users) {
-            response.append(user.getName()).append(" ");
+        // Streamed after the responses already queued for this connection, the history can be larger than the queue
+        if (last) {
+            connection.stream(new HistoryStream(request.tag(), groupName, count));
+        } else {
+            long size = historyStore.size(groupName);
+            connection.stream(new HistoryStream(request.tag(), groupName, from, count >= size - from ? size : from + count));
         }
-        out.write(ServerCommand.LIST_USERS + " " + response + END_OF_LINE);
-        out.flush();
     }
 
-
-    private void sendOkResponse (BufferedWriter out) throws IOException {
-        out.write("OK" + END_OF_LINE);
-        out.flush();
+    private void processCompress(Request request, Connection connection) throws IOException {
+        // COMPRESS, the next HISTORY responses are compressed
+        connection.setCompressingHistory(true);
+        sendOkResponse(request, connection);
     }
 
-    private void sendErrorResponse(BufferedWriter out, int code) throws IOException {
-        out.write("ERROR " + code + END_OF_LINE);
-        out.flush();
+    private void processStats(Request request, Connection connection) throws IOException {
+        // STATS, answered to any client, the names are described in doc/application_protocol.md
+        connection.write(connection.getProtocol().stats(request.tag(), stats()));
     }
-}
 
+    /*
+     * Sends the messages [next, end) of a group as HISTORY_ENTRY lines followed by HISTORY_END.
+     * Each part reads at most streamPartSize() messages, so the memory used does not depend on the size of the history.
+     * After COMPRESS a part is sent as one HISTORY_CHUNK, it takes a single place in the queue and holds more messages.
+     */
+    private class HistoryStream implements Connection.Stream {
+        private final long tag;
+        private final String group;
+        private long last; // LAST <count>, resolved when the first part is written, -1 otherwise
+        private long next;
+        private long end;
+        private long sent;
 
-class User{
-    private String name;
-    private String address; // Maybe not useful
-    private BufferedWriter output;
-    private ArrayList<String> groups;
-    private static final String[] existingGroups = {"HEIG-VD", "SPORT", "VOITURE"};
+        HistoryStream(long tag, String group, long from, long end) {
+            this.tag = tag;
+            this.group = group;
+            this.last = -1;
+            this.next = from;
+            this.end = end;
+        }
+
+        HistoryStream(long tag, String group, long last) {
+            this.tag = tag;
+            this.group = group;
+            this.last = last;
+        }
 
-    public User(String name, String address, BufferedWriter output) {
-        this.name = name;
-        this.address = address;
-        this.output = output;
-        this.groups = new ArrayList<>();
+        @Override
+        public boolean writeNext(Connection connection) {
+            long before = sent;
+            Protocol protocol = connection.getProtocol();
+            List<Frame> chunk = connection.isCompressingHistory() ? new ArrayList<>() : null;
+            HistoryStore.MessageConsumer entry = (sequence, message) -> {
+                if (chunk == null) {
+                    connection.write(protocol.historyEntry(tag, sequence, message));
+                } else {
+                    chunk.add(protocol.historyEntry(Protocol.NO_TAG, sequence, message));
+                }
+                next = sequence + 1;
+                sent++;
+            };
+            long start = System.nanoTime();
+            try {
+                if (last >= 0) {
+                    long count = last;
+                    last = -1;
+                    // The recent messages usually are in the cache
+                    if (historyCache.readLast(group, count, entry)) {
+                        metrics.historyRead().record(System.nanoTime() - start);
+                        writeChunk(connection, chunk);
+                        connection.write(protocol.historyEnd(tag, sent));
+                        return false;
+                    }
+                    end = historyStore.size(group);
+                    next = Math.max(0, end - count);
+                    before = -1; // nothing was sent yet, continue with the store
+                }
+                long count = Math.min(chunk == null ? streamPartSize() : COMPRESSED_PART_SIZE, end - next);
+                if (count > 0 && !historyCache.read(group, next, count, entry)) {
+                    historyStore.read(group, next, count, entry);
+                }
+                metrics.historyRead().record(System.nanoTime() - start);
+            } catch (IOException e) {
+                System.err.println("An error occurred while retrieving text content: " + e.getMessage());
+            }
+            writeChunk(connection, chunk);
+            if (sent == before || next >= end) {
+                connection.write(protocol.historyEnd(tag, sent));
+                return false;
+            }
+            return true;
+        }
+
+        /* Deflates the entries of the part into one HISTORY_CHUNK, nothing to do when the history is not compressed */
+        private void writeChunk(Connection connection, List<Frame> chunk) {
+            if (chunk == null || chunk.isEmpty()) return;
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(1024);
+            // The fastest level, chat text still shrinks several times and the CPU time is the one of a copy
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+                for (Frame frame : chunk) {
+                    frame.writeTo(out);
+                }
+            } catch (IOException e) { // not thrown by a ByteArrayOutputStream
+                throw new UncheckedIOException(e);
+            } finally {
+                deflater.end();
+            }
+            connection.write(connection.getProtocol().historyChunk(tag, compressed.toByteArray()));
+        }
     }
-    public String getName() {
-        return name;
+
+    private void processExport(Request request, Connection connection) throws IOException {
+        // EXPORT <group> or EXPORT <group> <from> <count>
+        int arguments = request.argumentCount();
+        String groupName = request.argument(0);
+
+        int errorCode = 0;
+
+        // Check if sender exists
+        User user;
+        if((user = connection.getUser()) == null){
+            errorCode = 2;
+            sendErrorResponse(request, connection, errorCode);
+            return;
+        }
+
+        if (!User.isValidGroupName(groupName)) {
+            errorCode = 3;
+            sendErrorResponse(request, connection, errorCode);
+            return;
+        }
+
+        if (!user.isInGroup(groupName)) {
+            errorCode = 1;
+            sendErrorResponse(request, connection, errorCode);
+            return;
+        }
+
+        long from = 0;
+        long count = Long.MAX_VALUE;
+        try {
+            if (arguments == 3) {
+                from = request.longArgument(1);
+                count = request.longArgument(2);
+            } else if (arguments != 1) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            count = -1;
+        }
+        if (from < 0 || count < 0) {
+            errorCode = 4;
+            sendErrorResponse(request, connection, errorCode);
+            return;
+        }
+
+        // The stored lines are sent as they are, after a header giving their number and size
+        List<HistoryStore.Region> regions = new ArrayList<>();
+        long messages = historyStore.export(groupName, from, count, regions);
+        long bytes = 0;
+        for (HistoryStore.Region region : regions) {
+            bytes += region.length();
+        }
+        Frame header = connection.getProtocol().export(request.tag(), from, messages, bytes);
+        connection.stream(new ExportStream(header.buffer(), regions));
     }
 
-    public String getAddress() {
-        return address;
+    /*
+     * Sends the header then the file regions with FileChannel.transferTo, the stored bytes do not go through the heap
+     * (a compressed segment is inflated one block at a time, EXPORT always sends the stored lines uncompressed).
+     * Everything is sent as one part, no queued line may be written between the header and the last byte.
+     */
+    private static class ExportStream implements Connection.Stream {
+        private final ByteBuffer header;
+        private final List<HistoryStore.Region> regions;
+        private int next;
+        private long offset; // bytes of the current region already sent
+
+        ExportStream(ByteBuffer header, List<HistoryStore.Region> regions) {
+            this.header = header;
+            this.regions = regions;
+        }
+
+        @Override
+        public boolean writeNext(Connection connection) throws IOException {
+            if (header.hasRemaining()) {
+                connection.send(header);
+                if (header.hasRemaining()) return true; // Socket buffer is full, the writer resumes here first
+            }
+            while (next < regions.size()) {
+                HistoryStore.Region region = regions.get(next);
+                offset += region.sendTo(connection, offset);
+                if (offset < region.length()) return true; // Socket buffer is full, the writer resumes here first
+                region.close();
+                next++;
+                offset = 0;
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            for (; next < regions.size(); next++) {
+                regions.get(next).close();
+            }
+        }
     }
 
-    public BufferedWriter getOutput() {
-        return output;
+    private void processBatch(Request request, Connection connection) throws IOException {
+        // BATCH <count>, followed by <count> SEND_PRIVATE or SEND_GROUP lines
+        long size;
+        try {
+            size = request.longArgument(0);
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        if (size < 1 || size > Batch.MAX_SIZE) {
+            sendErrorResponse(request, connection, 2);
+            return;
+        }
+        connection.setBatch(new Batch(request.tag(), (int) size));
     }
 
-    static public String[] getExistingGroups() {return existingGroups; }
+    private void processBatchItem(Batch batch, Connection connection) throws IOException {
+        if (!batch.isComplete()) return;
+        connection.setBatch(null);
+        Protocol protocol = connection.getProtocol();
 
-    static public boolean isValidGroupName(String group){
-        for (String currentGroup : existingGroups){
-            if(group.equals(currentGroup)){
-                return true;
+        // Checked once for the whole batch
+        User sender = connection.getUser();
+        if (sender == null) {
+            connection.write(protocol.error(batch.tag(), 3));
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.code(i) == Batch.INVALID) {
+                connection.write(protocol.error(batch.tag(), 1));
+                return;
             }
         }
-        return false;
-    }
 
-    public void addGroupToUser(String group){
-        this.groups.add(group);
+        // Each recipient and group is checked once, the frames of one recipient are queued as a single write
+        // and the messages of one group are handed to its shard at once
+        Map<String, User> recipients = new HashMap<>();
+        Map<String, Integer> groupCodes = new HashMap<>();
+        Map<Connection, List<Frame>> deliveries = new LinkedHashMap<>();
+        Map<String, List<String>> groupContents = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.code(i) != 0) continue;
+            String target = batch.target(i);
+            String content = batch.message(i);
+            if (batch.command(i) == ClientCommand.SEND_PRIVATE) {
+                User user = recipients.computeIfAbsent(target, users::findByName);
+                if (user == null) {
+                    if ((federation == null || !federation.forwardPrivate(sender, target, content))
+                            && !storeInbox(sender, target, content)) {
+                        batch.setCode(i, 1);
+                    }
+                    continue;
+                }
+                deliver(deliveries, user.getConnection(), sender, user.getConnection().getProtocol().receivePrivate(sender, content));
+            } else {
+                int code = groupCodes.computeIfAbsent(target, group -> !User.isValidGroupName(group) ? 1 : !sender.isInGroup(group) ? 4 : 0);
+                if (code != 0) {
+                    batch.setCode(i, code);
+                    continue;
+                }
+                groupContents.computeIfAbsent(target, group -> new ArrayList<>()).add(content);
+                if (federation != null) {
+                    federation.forwardGroup(target, sender, content);
+                }
+            }
+        }
+        for (Map.Entry<Connection, List<Frame>> delivery : deliveries.entrySet()) {
+            delivery.getKey().write(Frame.concat(delivery.getValue()));
+        }
+        Frame result = protocol.batchResult(batch.tag(), batch.codes());
+        if (HISTORY_DURABILITY == HistoryWriter.Durability.BATCH && !groupContents.isEmpty()) {
+            // The result is sent once the shards of all the groups synced their messages to the disk
+            AtomicInteger pending = new AtomicInteger(groupContents.size());
+            Runnable written = () -> {
+                if (pending.decrementAndGet() == 0) connection.write(result);
+            };
+            for (Map.Entry<String, List<String>> contents : groupContents.entrySet()) {
+                groups.publish(contents.getKey(), sender, contents.getValue(), written);
+            }
+            return;
+        }
+        for (Map.Entry<String, List<String>> contents : groupContents.entrySet()) {
+            groups.publish(contents.getKey(), sender, contents.getValue());
+        }
+        connection.write(result);
     }
 
-    public boolean isInGroup(String group){
-        return this.groups.contains(group);
+    private static void deliver(Map<Connection, List<Frame>> deliveries, Connection recipient, User sender, Frame frame) {
+        List<Frame> frames = deliveries.get(recipient);
+        if (frames == null) {
+            recipient.getProtocol().announce(recipient, sender);
+            deliveries.put(recipient, frames = new ArrayList<>());
+        }
+        frames.add(frame);
     }
 
-    static public User[] findAllUsersByGroup(CopyOnWriteArrayList<User> users, String group){
-        CopyOnWriteArrayList<User> usersInGroup = new CopyOnWriteArrayList<>();
-        for (User user : users){
-            if(user.isInGroup(group)){
-                usersInGroup.add(user);
+    /*
+     * Sends the messages kept in the inbox of a user as RECEIVE_PRIVATE, streamPartSize() messages per write.
+     * The senders may have left, the ones that are not connected get a User of their own for the binary protocol.
+     * Once the stream ends, or its client leaves, the inbox forgets the messages written and keeps the other ones.
+     * A part is only written once the parts before left the outbound queue: when the client leaves, the messages
+     * of the last part may not have been sent and are kept too.
+     */
+    private class InboxStream implements Connection.Stream {
+        private final User user;
+        private final Inbox.Backlog backlog;
+        private final List<String> messages;
+        private final Map<String, User> senders = new HashMap<>();
+        private int next;
+        private int sent; // messages before the last part written
+
+        InboxStream(User user, Inbox.Backlog backlog) {
+            this.user = user;
+            this.backlog = backlog;
+            this.messages = backlog.messages();
+        }
+
+        @Override
+        public boolean writeNext(Connection connection) {
+            Protocol protocol = connection.getProtocol();
+            int end = Math.min(messages.size(), next + streamPartSize());
+            List<Frame> frames = new ArrayList<>(end - next);
+            sent = next;
+            for (; next < end; next++) {
+                // "<sender> <message>"
+                String message = messages.get(next);
+                int space = message.indexOf(' ');
+                if (space < 0) continue;
+                User sender = senders.computeIfAbsent(message.substring(0, space), name -> {
+                    User user = users.findByName(name);
+                    return user != null ? user : new User(name, null);
+                });
+                protocol.announce(connection, sender);
+                frames.add(protocol.receivePrivate(sender, message.substring(space + 1)));
+            }
+            if (!frames.isEmpty()) {
+                connection.write(Frame.concat(frames));
+            }
+            return next < messages.size();
+        }
+
+        @Override
+        public void close() {
+            // Messages stored during the delivery wait for it to end
+            boolean left = user.getConnection().isClosed();
+            if (inbox.ack(backlog, left ? sent : next) && !left && users.findByName(user.getName()) == user) {
+                deliverInbox(user);
             }
         }
-        return usersInGroup.toArray(new User[0]);
     }
 
-    static public void removeUserFromAddress(CopyOnWriteArrayList<User> users, String address) {
-        users.removeIf(user -> user.getAddress().equals(address));
+    /* Number of lines queued at once by a stream, a fraction of the outbound queue */
+    private static final int COMPRESSED_PART_SIZE = 1024; // messages per HISTORY_CHUNK
+
+    int streamPartSize() {
+        return Math.max(1, Math.min(128, OUTBOUND_QUEUE_SIZE / 4));
+    }
+
+    private void processListGroups(Request request, Connection connection) throws IOException {
+        // LIST_GROUPS [<after>], a full page means the client can ask for the groups after its last one
+        String after = request.argumentCount() > 0 ? request.argument(0) : null;
+        connection.write(connection.getProtocol().listGroups(request.tag(), User.getGroupTable().page(after, LIST_GROUPS_PAGE_SIZE)));
     }
 
-    /* returns -1 when user is not found*/
-    static public User findUserByName(CopyOnWriteArrayList<User> users, String name) {
-        for (User user : users) {
-            if (user.getName().equals(name)) {
-                return user;
-            }
+    private void processCreateGroup(Request request, Connection connection) throws IOException {
+        // CREATE_GROUP <group>, only its creator can delete it
+        String groupName = request.argument(0);
+
+        int errorCode = 0;
+
+        // Check if sender exists
+        User user;
+        if((user = connection.getUser()) == null){
+            errorCode = 3;
+            sendErrorResponse(request, connection, errorCode);
+            return;
+        }
+
+        if (request.argumentCount() != 1 || !GroupTable.isValidName(groupName)) {
+            errorCode = 1;
+            sendErrorResponse(request, connection, errorCode);
+            return;
+        }
+
+        if (User.getGroupTable().size() >= MAX_GROUPS) {
+            errorCode = 4;
+            sendErrorResponse(request, connection, errorCode);
+            return;
+        }
+
+        GroupTable.Group group = User.getGroupTable().create(groupName, user.getName());
+        if (group == null) {
+            errorCode = 2;
+            sendErrorResponse(request, connection, errorCode);
+            return;
+        }
+        if (federation != null) {
+            federation.onCreate(group);
         }
-        return null;
+        System.out.println("[Server] " + user.getName() + " created " + groupName);
+        sendOkResponse(request, connection, group.id());
     }
-    static public User findUserByAddress(CopyOnWriteArrayList<User> users, String address) {
-        for (User user : users) {
-            if (user.getAddress().equals(address)) {
-                return user;
-            }
+
+    private void processDeleteGroup(Request request, Connection connection) throws IOException {
+        // DELETE_GROUP <group>, its members leave it and its history is deleted
+        String groupName = request.argument(0);
+
+        int errorCode = 0;
+
+        // Check if sender exists
+        User user;
+        if((user = connection.getUser()) == null){
+            errorCode = 3;
+            sendErrorResponse(request, connection, errorCode);
+            return;
+        }
+
+        GroupTable.Group group = User.getGroupTable().get(groupName);
+        if (group == null) {
+            errorCode = 1;
+            sendErrorResponse(request, connection, errorCode);
+            return;
+        }
+
+        // The default groups have no owner
+        if (!user.getName().equals(group.owner())) {
+            errorCode = 2;
+            sendErrorResponse(request, connection, errorCode);
+            return;
+        }
+
+        if (!deleteGroup(groupName)) { // deleted meanwhile
+            errorCode = 1;
+            sendErrorResponse(request, connection, errorCode);
+            return;
+        }
+        if (federation != null) {
+            federation.onDelete(groupName);
         }
-        return null;
+        System.out.println("[Server] " + user.getName() + " deleted " + groupName);
+        sendOkResponse(request, connection);
     }
-}
\ No newline at end of file
+
+    /* Removes the group from the table, then its shard removes its members and its history */
+    boolean deleteGroup(String group) {
+        if (!User.getGroupTable().delete(group)) return false;
+        groups.delete(group);
+        return true;
+    }
+
+    private void processListUsers(Request request, Connection connection) throws IOException {
+        connection.write(connection.getProtocol().listUsers(request.tag(), federation == null ? users.getUsers() : federation.allUsers()));
+    }
+
+
+    /* The responses echo the tag of the request, the client may have sent other requests since */
+    private void sendOkResponse (Request request, Connection connection) throws IOException {
+        connection.write(connection.getProtocol().ok(request.tag()));
+    }
+
+    /* OK with the id of the user or of the group, only sent by the binary protocol */
+    private void sendOkResponse (Request request, Connection connection, long id) throws IOException {
+        connection.write(connection.getProtocol().ok(request.tag(), id));
+    }
+
+    private void sendErrorResponse(Request request, Connection connection, int code) throws IOException {
+        metrics.onError(request.command());
+        connection.write(connection.getProtocol().error(request.tag(), code));
+    }
+}
@@ -0,0 +1,73 @@
+package ch.heigvd.dai.network;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class User{
+    private static final AtomicInteger nextId = new AtomicInteger();
+    private final int id; // sent instead of the name by the binary protocol, never reused
+    private String name;
+    private Connection connection;
+    private Set<String> groups;
+    private RateLimiter messageLimit;
+    private RateLimiter byteLimit;
+    private static final GroupTable groupTable = new GroupTable(); // shared by the servers of the JVM, as the ids
+
+    public User(String name, Connection connection) {
+        this.id = nextId.getAndIncrement();
+        this.name = name;
+        this.connection = connection;
+        this.groups = ConcurrentHashMap.newKeySet();
+    }
+    public String getName() {
+        return name;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /* Limits of the messages sent by the user, null for no limit. Set by JOIN, a new JOIN starts from full buckets */
+    void setRateLimits(RateLimiter messages, RateLimiter bytes) {
+        this.messageLimit = messages;
+        this.byteLimit = bytes;
+    }
+
+    /* Takes a message of length characters from the limits of the user, false if it is over one of them */
+    boolean allowsMessage(int length) {
+        return RateLimiter.allows(messageLimit, 1) && RateLimiter.allows(byteLimit, length);
+    }
+
+    static GroupTable getGroupTable() {return groupTable; }
+
+    /* Id of the group in the binary protocol, -1 if the group does not exist */
+    static public int getGroupId(String group){
+        return groupTable.idOf(group);
+    }
+
+    /* Name of the group with this id, null if there is none */
+    static public String getGroupName(int id){
+        return groupTable.nameOf(id);
+    }
+
+    static public boolean isValidGroupName(String group){
+        return groupTable.exists(group);
+    }
+
+    public void addGroupToUser(String group){
+        this.groups.add(group);
+    }
+
+    public Set<String> getGroups() {
+        return groups;
+    }
+
+    public boolean isInGroup(String group){
+        return this.groups.contains(group);
+    }
+}
@@ -0,0 +1,34 @@
+package ch.heigvd.dai.network;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Connected users indexed by name.
+ * The lookup by connection is not needed here: once JOIN succeeded the user is bound to its Connection.
+ */
+class UserRegistry {
+    private final ConcurrentHashMap<String, User> usersByName = new ConcurrentHashMap<>();
+
+    /* Reserves the name of the user, returns false if another user already has it */
+    public boolean register(User user) {
+        return usersByName.putIfAbsent(user.getName(), user) == null;
+    }
+
+    /* Only removes the entry if it still belongs to this user */
+    public void unregister(User user) {
+        usersByName.remove(user.getName(), user);
+    }
+
+    public User findByName(String name) {
+        return usersByName.get(name);
+    }
+
+    public Collection<User> getUsers() {
+        return usersByName.values();
+    }
+
+    public int size() {
+        return usersByName.size();
+    }
+}
@@ -6,6 +6,12 @@ public enum ClientCommand{
     SEND_GROUP,
     PARTICIPATE,
     HISTORY,
+    EXPORT,
     LIST_GROUPS,
-    LIST_USERS
+    LIST_USERS,
+    BATCH,
+    COMPRESS,
+    STATS,
+    CREATE_GROUP,
+    DELETE_GROUP
 }
\ No newline at end of file
@@ -2,12 +2,15 @@ package ch.heigvd.dai.util;
 import java.util.List;
 
 public class ErrorMapping {
+    public static final int RATE_LIMITED = 9; // any command, the client sent more than the limits of the server allow
+    private static final ErrorMapping RATE_LIMITED_MAPPING =
+            new ErrorMapping(null, RATE_LIMITED, "Too many requests, the server refused this one, try again later.");
     private ClientCommand command;
     private int errorCode;
     private String message;
     static final List<ErrorMapping> errorMappings = List.of(
             new ErrorMapping(ClientCommand.JOIN, 1, "The username is already in use."),
-            new ErrorMapping(ClientCommand.SEND_PRIVATE, 1, "The recipient is not connected."),
+            new ErrorMapping(ClientCommand.SEND_PRIVATE, 1, "The recipient is not connected and its inbox is full."),
             new ErrorMapping(ClientCommand.SEND_PRIVATE, 2, "The message exceeds 100 characters."),
             new ErrorMapping(ClientCommand.SEND_PRIVATE, 3, "The client has not connected to the server using `JOIN`."),
             new ErrorMapping(ClientCommand.SEND_GROUP, 1, "The specified group does not exist."),
@@ -17,7 +20,23 @@ public class ErrorMapping {
             new ErrorMapping(ClientCommand.PARTICIPATE, 1, "The specified group does not exist."),
             new ErrorMapping(ClientCommand.PARTICIPATE, 2, "The client has not connected to the server using `JOIN`."),
             new ErrorMapping(ClientCommand.HISTORY, 1,"The client is not a member of the specified group."),
-            new ErrorMapping(ClientCommand.HISTORY, 2, "The client has not connected to the server using `JOIN`.")
+            new ErrorMapping(ClientCommand.HISTORY, 2, "The client has not connected to the server using `JOIN`."),
+            new ErrorMapping(ClientCommand.HISTORY, 3, "The specified group does not exist."),
+            new ErrorMapping(ClientCommand.HISTORY, 4, "The requested range of messages is invalid."),
+            new ErrorMapping(ClientCommand.EXPORT, 1,"The client is not a member of the specified group."),
+            new ErrorMapping(ClientCommand.EXPORT, 2, "The client has not connected to the server using `JOIN`."),
+            new ErrorMapping(ClientCommand.EXPORT, 3, "The specified group does not exist."),
+            new ErrorMapping(ClientCommand.EXPORT, 4, "The requested range of messages is invalid."),
+            new ErrorMapping(ClientCommand.BATCH, 1, "A batch can only hold SEND_PRIVATE and SEND_GROUP commands."),
+            new ErrorMapping(ClientCommand.BATCH, 2, "The batch size must be between 1 and 256."),
+            new ErrorMapping(ClientCommand.BATCH, 3, "The client has not connected to the server using `JOIN`."),
+            new ErrorMapping(ClientCommand.CREATE_GROUP, 1, "The group name must be 1 to 32 upper case letters, digits, - or _."),
+            new ErrorMapping(ClientCommand.CREATE_GROUP, 2, "The group already exists."),
+            new ErrorMapping(ClientCommand.CREATE_GROUP, 3, "The client has not connected to the server using `JOIN`."),
+            new ErrorMapping(ClientCommand.CREATE_GROUP, 4, "The server has reached its maximum number of groups."),
+            new ErrorMapping(ClientCommand.DELETE_GROUP, 1, "The specified group does not exist."),
+            new ErrorMapping(ClientCommand.DELETE_GROUP, 2, "Only the client that created the group can delete it."),
+            new ErrorMapping(ClientCommand.DELETE_GROUP, 3, "The client has not connected to the server using `JOIN`.")
             );
 
     public ErrorMapping(ClientCommand command, int errorCode, String message) {
@@ -31,6 +50,7 @@ public class ErrorMapping {
     }
 
     public static ErrorMapping findErrorMapping(ClientCommand command, int errorCode) {
+        if (errorCode == RATE_LIMITED) return RATE_LIMITED_MAPPING;
         // Search the errorMappings list for a matching command and error code
         for (ErrorMapping mapping : ErrorMapping.errorMappings) {
             if (mapping.command == command && mapping.errorCode == errorCode) {
@@ -5,7 +5,12 @@ public enum ServerCommand{
     ERROR,
     RECEIVE_PRIVATE,
     RECEIVE_GROUP,
-    HISTORY,
+    HISTORY_ENTRY,
+    HISTORY_END,
+    EXPORT,
     LIST_GROUPS,
-    LIST_USERS
+    LIST_USERS,
+    BATCH_RESULT,
+    HISTORY_CHUNK,
+    STATS
 }